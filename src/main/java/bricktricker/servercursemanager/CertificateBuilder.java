@@ -27,13 +27,13 @@ import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPrivateKey;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Objects;
@@ -44,7 +44,7 @@ import javax.security.auth.x500.X500Principal;
 
 /**
  * A class that allows building a X509 certificate as defined in <a href="https://datatracker.ietf.org/doc/html/rfc5280">RFC5280</a>.
- * This Builder only supports signing the certificate with a RSA key.
+ * This Builder supports signing the certificate with a RSA, ECDSA or Ed25519 key.
  * Usage:
  * <pre>
  * X509Certificate cert = new CertificateBuilder()
@@ -61,6 +61,10 @@ import javax.security.auth.x500.X500Principal;
 public class CertificateBuilder {
 
     public static final SignatureAlg SIG_Sha256WithRSAEncryption = new SignatureAlg("SHA256WithRSA", new byte[] {0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x0b});
+    // ecdsa-with-SHA256 (1.2.840.10045.4.3.2), the parameters must be absent (RFC 5758)
+    public static final SignatureAlg SIG_EcdsaWithSha256 = new SignatureAlg("SHA256withECDSA", new byte[] {0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x02}, false);
+    // id-Ed25519 (1.3.101.112), the parameters must be absent (RFC 8410)
+    public static final SignatureAlg SIG_Ed25519 = new SignatureAlg("Ed25519", new byte[] {0x2b, 0x65, 0x70}, false);
 
     // DER encoded version, or null if version is 1
     private byte[] versionBytes;
@@ -248,11 +252,11 @@ public class CertificateBuilder {
     /**
      * Generate and sign the build certificate.
      * 
-     * @param cakey The privates key of the issuer / ca that should be used to sign the certificate
+     * @param cakey The privates key of the issuer / ca that should be used to sign the certificate, must match the signature algorithm
      * @param signatureAlgorithm The signing algorithm that should be used
      * @return The build {@link X509Certificate}
      */
-    public X509Certificate build(RSAPrivateKey cakey, SignatureAlg signatureAlgorithm) {
+    public X509Certificate build(PrivateKey cakey, SignatureAlg signatureAlgorithm) {
         return this.finalize(signatureAlgorithm, tbsCertBytes -> {
             try {
                 Signature sig = Signature.getInstance(signatureAlgorithm.name);
@@ -585,21 +589,29 @@ public class CertificateBuilder {
      */
     private static void writeSignatureAlgo(SignatureAlg algo, OutputStream oos) throws IOException {
         oos.write(0x30); // constructed universal type sequence
-        oos.write(4 + algo.oid.length); // sequence length
+        oos.write((algo.nullParams ? 4 : 2) + algo.oid.length); // sequence length
         oos.write(0x06); // universal type object ID (OID) 
         oos.write(algo.oid.length);
         oos.write(algo.oid);
         
-        // write parameters. Not supported in this implementation, so we write 'null'
-        oos.write(0x05); // universal type null (params)
-        oos.write(0); // null length 0x0 (0) bytes 
+        if(algo.nullParams) {
+            // write parameters. Not supported in this implementation, so we write 'null'
+            oos.write(0x05); // universal type null (params)
+            oos.write(0); // null length 0x0 (0) bytes 
+        }
     }
     
     /**
      * Holds a signature algorithm. Does not support signature algorithms with extra parameters.
      * @param name The signature name, used to get the Signature object from {@link Signature#getInstance(String)}
      * @param oid The DER encoded object identifier of this signature algorithm
+     * @param nullParams true if the parameters are encoded as 'null', false if they are absent
      */
-    public record SignatureAlg(String name, byte[] oid) {}
+    public record SignatureAlg(String name, byte[] oid, boolean nullParams) {
+        
+        public SignatureAlg(String name, byte[] oid) {
+            this(name, oid, true);
+        }
+    }
 
 }
@@ -13,6 +13,10 @@ public enum CopyOption {
 	}),
 	KEEP("keep", path -> {
 		return !Files.exists(path) && OVERWRITE.writeFile(path);
+	}),
+	// Like overwrite, but local changes are only overwritten if the file in the modpack changed, see IncrementalInstaller
+	SYNC("sync", path -> {
+		return OVERWRITE.writeFile(path);
 	});
 
 	private final String configName;
@@ -1,10 +1,11 @@
 package bricktricker.servercursemanager;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.net.URLDecoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Redirect;
@@ -13,20 +14,42 @@ import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.function.LongConsumer;
 
 import com.google.gson.JsonParser;
 
+import bricktricker.servercursemanager.jfr.ModDownloadEvent;
 import bricktricker.servercursemanager.server.ServerSideHandler.ModMapping;
 
 public class CurseDownloader {
 
+    /**
+     * Opens the content of a remote mod
+     */
+    @FunctionalInterface
+    public interface Source {
+        InputStream open(String downloadURL, String sha1) throws IOException;
+    }
+
+    /**
+     * Downloads the mods from the URL in the manifest
+     */
+    public static final Source CDN = (downloadURL, sha1) -> {
+        try {
+            return new URI(downloadURL).toURL().openStream();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    };
+
     public static CompletableFuture<ModMapping> downloadMod(int projectID, int fileID, Path targetDir, Executor executor) {
+        ModDownloadEvent event = new ModDownloadEvent();
+        event.begin();
         
         String metaDataURL = String.format("https://api.curse.tools/v1/mods/%s/files/%s/", projectID, fileID);
         URI url;
@@ -84,29 +107,88 @@ public class CurseDownloader {
                     String fileName = target.getFileName().toString();
 
                     return new ModMapping(projectID, fileID, fileName, downloadURL, sha1Hash);
+                })
+                .whenComplete((mapping, e) -> {
+                    if(event.shouldCommit()) {
+                        event.projectID = projectID;
+                        event.fileID = fileID;
+                        if(mapping != null) {
+                            event.file = mapping.fileName();
+                            event.url = mapping.downloadUrl();
+                            event.size = targetDir.resolve(mapping.fileName()).toFile().length();
+                        }
+                        event.success = e == null;
+                        event.commit();
+                    }
                 });
 
         return reqFuture;
     }
 
-    public static void downloadFile(String downloadURL, String filename, String sha1, Path targetDir) throws IOException {
+    /**
+     * Downloads the file, if it does not exist yet, and checks its hash
+     *
+     * @param hashIndex The index, that knows the hashes of the already downloaded files
+     * @param modCache The shared cache, that is used before the file is downloaded, or null
+     * @param progress Receives the number of downloaded bytes, or null. A file from the mod cache counts as downloaded.
+     */
+    public static void downloadFile(String downloadURL, String filename, String sha1, Path targetDir, HashIndex hashIndex, ModCache modCache, LongConsumer progress) throws IOException {
+        downloadFile(downloadURL, filename, sha1, targetDir, hashIndex, modCache, progress, CDN);
+    }
+
+    /**
+     * Downloads the file from the source, if it does not exist yet, and checks its hash
+     *
+     * @see #downloadFile(String, String, String, Path, HashIndex, ModCache, LongConsumer)
+     */
+    public static void downloadFile(String downloadURL, String filename, String sha1, Path targetDir, HashIndex hashIndex, ModCache modCache, LongConsumer progress, Source source) throws IOException {
+        ModDownloadEvent event = new ModDownloadEvent();
+        event.begin();
+        try {
+            downloadFile(downloadURL, filename, sha1, targetDir, hashIndex, modCache, progress, source, event);
+            event.success = true;
+        } finally {
+            if(event.shouldCommit()) {
+                event.file = filename;
+                event.url = downloadURL;
+                event.size = targetDir.resolve(filename).toFile().length();
+                event.commit();
+            }
+        }
+    }
+
+    private static void downloadFile(String downloadURL, String filename, String sha1, Path targetDir, HashIndex hashIndex, ModCache modCache, LongConsumer progress, Source source, ModDownloadEvent event) throws IOException {
         Path target = targetDir.resolve(filename);
-        if (!Files.exists(target)) {
-            URL url;
-            try {
-                URI uri = new URI(downloadURL);
-                url = uri.toURL();
-            } catch (URISyntaxException e) {
-                throw new IOException(e);
+        boolean exists = Files.exists(target);
+        event.cached = exists || (modCache != null && modCache.get(sha1, target));
+        if (!exists && event.cached && progress != null) {
+            progress.accept(Files.size(target));
+        }
+        boolean downloaded = !event.cached;
+        if (downloaded) {
+            try (InputStream in = source.open(downloadURL, sha1); OutputStream out = Files.newOutputStream(target)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    if (progress != null) {
+                        progress.accept(read);
+                    }
+                }
             }
-            Files.copy(url.openStream(), target, StandardCopyOption.REPLACE_EXISTING);
         }
 
-        String computedHash = Utils.computeSha1Str(target);
+        String computedHash = hashIndex.computeSha1Str(target);
         if (!computedHash.equals(sha1)) {
             Files.delete(target);
+            if (modCache != null) {
+                modCache.remove(sha1);
+            }
             throw new IOException("Wrong hash for downloaded file " + downloadURL);
         }
+        if (downloaded && modCache != null) {
+            modCache.put(sha1, target);
+        }
     }
 
 }
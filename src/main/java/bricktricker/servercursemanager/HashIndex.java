@@ -0,0 +1,148 @@
+package bricktricker.servercursemanager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Remembers the SHA-1 hashes of files, together with their size, modification time and file key.
+ * As long as these match, the stored hash is used instead of reading the whole file again.
+ * Every hash is verified again after a week, or on every launch if a full verification is forced.
+ */
+public class HashIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long VERIFY_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    // A file that was modified this shortly before it was hashed could change again without a new modification time
+    private static final long RACY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private final Path indexFile;
+    private final boolean forceVerify;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    /**
+     * @param indexFile The file where the index is stored
+     * @param forceVerify true, if every file should be hashed again
+     */
+    public HashIndex(Path indexFile, boolean forceVerify) {
+        this.indexFile = indexFile;
+        this.forceVerify = forceVerify;
+        load();
+    }
+
+    /**
+     * @return The SHA-1 of the file, see {@link Utils#computeSha1(Path)}
+     */
+    public byte[] computeSha1(Path file) {
+        return Base64.getDecoder().decode(computeSha1Str(file));
+    }
+
+    /**
+     * @return The Base64 encoded SHA-1 of the file, see {@link Utils#computeSha1Str(Path)}
+     */
+    public String computeSha1Str(Path file) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        }catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String key = file.toAbsolutePath().normalize().toString();
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        // not every file system has file keys
+        String fileKey = Objects.toString(attributes.fileKey(), null);
+        long now = System.currentTimeMillis();
+
+        Entry entry = this.entries.get(key);
+        if(!this.forceVerify && entry != null && entry.size() == size && entry.modified() == modified
+                && Objects.equals(entry.fileKey(), fileKey) && now - entry.verified() < VERIFY_INTERVAL_MILLIS) {
+            return entry.sha1();
+        }
+
+        String sha1 = Utils.computeSha1Str(file);
+        // Don't trust the hash of a file that was just modified, it is hashed again on the next launch
+        long verified = now - modified < RACY_MILLIS ? 0 : now;
+        this.entries.put(key, new Entry(size, modified, fileKey, sha1, verified));
+        this.dirty = true;
+        return sha1;
+    }
+
+    /**
+     * Writes the index to disk, if it changed. Entries of files that no longer exist are removed.
+     */
+    public void save() {
+        if(this.entries.keySet().removeIf(path -> !Files.isRegularFile(Path.of(path)))) {
+            this.dirty = true;
+        }
+        if(!this.dirty) {
+            return;
+        }
+
+        JsonObject index = new JsonObject();
+        this.entries.forEach((path, entry) -> {
+            JsonObject entryJson = new JsonObject();
+            entryJson.addProperty("size", entry.size());
+            entryJson.addProperty("modified", entry.modified());
+            if(entry.fileKey() != null) {
+                entryJson.addProperty("fileKey", entry.fileKey());
+            }
+            entryJson.addProperty("sha1", entry.sha1());
+            entryJson.addProperty("verified", entry.verified());
+            index.add(path, entryJson);
+        });
+
+        try {
+            Path tmpFile = this.indexFile.resolveSibling(this.indexFile.getFileName() + ".tmp");
+            Utils.saveJson(index, tmpFile);
+            try {
+                Files.move(tmpFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.dirty = false;
+        }catch(IOException | RuntimeException e) {
+            LOGGER.warn("Failed to save the hash index", e);
+        }
+    }
+
+    private void load() {
+        if(!Files.isRegularFile(this.indexFile)) {
+            return;
+        }
+        try {
+            JsonObject index = Utils.loadJson(this.indexFile).getAsJsonObject();
+            for(Map.Entry<String, JsonElement> e : index.entrySet()) {
+                JsonObject entry = e.getValue().getAsJsonObject();
+                this.entries.put(e.getKey(), new Entry(
+                        entry.getAsJsonPrimitive("size").getAsLong(),
+                        entry.getAsJsonPrimitive("modified").getAsLong(),
+                        entry.has("fileKey") ? entry.getAsJsonPrimitive("fileKey").getAsString() : null,
+                        entry.getAsJsonPrimitive("sha1").getAsString(),
+                        entry.getAsJsonPrimitive("verified").getAsLong()));
+            }
+        }catch(RuntimeException e) {
+            LOGGER.warn("Failed to load the hash index, hashing all files again", e);
+            this.entries.clear();
+        }
+    }
+
+    private static record Entry(long size, long modified, String fileKey, String sha1, long verified) {}
+}
@@ -0,0 +1,207 @@
+package bricktricker.servercursemanager;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * A cache of downloaded mods, that is shared between several game directories. The files are stored by their SHA-1
+ * and hard linked into the servermods folders, or copied if the file system does not support hard links.
+ * <p>
+ * Cache entries are only added by an atomic move of a complete file, so they can be read without a lock.
+ * The times of the last use are stored in an index, that is updated and used for the eviction of the least recently
+ * used entries while holding a lock on the cache directory, so several launchers can use the same cache.
+ */
+public class ModCache {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String LOCK_FILE = ".lock";
+    private static final String INDEX_FILE = "index.json";
+
+    private final Path directory;
+    private final long maxSize;
+    // the entries used in this session, with the time of their use
+    private final Map<String, Long> used = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory The cache directory
+     * @param maxSize The maximum size of the cache in bytes
+     */
+    public ModCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Links the cached file with the given hash to the target
+     *
+     * @param sha1 The Base64 encoded SHA-1 of the file
+     * @return true, if the cache contained the file
+     */
+    public boolean get(String sha1, Path target) throws IOException {
+        String name = entryName(sha1);
+        Path cached = this.directory.resolve(name);
+        if(!Files.isRegularFile(cached)) {
+            return false;
+        }
+        try {
+            link(cached, target);
+        }catch(NoSuchFileException e) {
+            // evicted by another launcher in the meantime
+            return false;
+        }
+        this.used.put(name, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Adds a downloaded file to the cache. The hash of the file must already be verified.
+     *
+     * @param sha1 The Base64 encoded SHA-1 of the file
+     */
+    public void put(String sha1, Path file) {
+        String name = entryName(sha1);
+        Path cached = this.directory.resolve(name);
+        this.used.put(name, System.currentTimeMillis());
+        if(Files.isRegularFile(cached)) {
+            return;
+        }
+
+        Path tmpFile = null;
+        try {
+            tmpFile = Files.createTempFile(this.directory, name, ".tmp");
+            link(file, tmpFile);
+            try {
+                Files.move(tmpFile, cached, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, cached);
+            }
+        }catch(FileAlreadyExistsException e) {
+            // added by another launcher in the meantime
+        }catch(IOException e) {
+            LOGGER.warn("Failed to add {} to the mod cache", file, e);
+        }finally {
+            try {
+                if(tmpFile != null) {
+                    Files.deleteIfExists(tmpFile);
+                }
+            }catch(IOException e) {
+                LOGGER.debug("Failed to delete {}", tmpFile, e);
+            }
+        }
+    }
+
+    /**
+     * Removes a cached file, e.g. because its content does not match its hash
+     */
+    public void remove(String sha1) {
+        String name = entryName(sha1);
+        this.used.remove(name);
+        try {
+            Files.deleteIfExists(this.directory.resolve(name));
+        }catch(IOException e) {
+            LOGGER.warn("Failed to remove {} from the mod cache", name, e);
+        }
+    }
+
+    /**
+     * Stores the times of the last use and removes the least recently used entries, until the cache is smaller than the maximum size.
+     * Other launchers wait until this is done.
+     */
+    public synchronized void evict() {
+        try(FileChannel channel = FileChannel.open(this.directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // released when the channel is closed
+            channel.lock();
+            Path indexFile = this.directory.resolve(INDEX_FILE);
+            JsonObject index = new JsonObject();
+            if(Files.isRegularFile(indexFile)) {
+                try {
+                    index = Utils.loadJson(indexFile).getAsJsonObject();
+                }catch(RuntimeException e) {
+                    LOGGER.warn("Failed to load the mod cache index", e);
+                }
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            long size = 0;
+            try(Stream<Path> files = Files.list(this.directory)) {
+                for(Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if(name.startsWith(".") || name.equals(INDEX_FILE) || name.endsWith(".tmp") || !Files.isRegularFile(file)) {
+                        continue;
+                    }
+                    long lastUsed = Files.getLastModifiedTime(file).toMillis();
+                    JsonElement indexed = index.get(name);
+                    if(indexed != null) {
+                        lastUsed = Math.max(lastUsed, indexed.getAsLong());
+                    }
+                    lastUsed = Math.max(lastUsed, this.used.getOrDefault(name, 0L));
+                    long fileSize = Files.size(file);
+                    entries.add(new Entry(name, fileSize, lastUsed));
+                    size += fileSize;
+                }
+            }
+
+            entries.sort(Comparator.comparingLong(Entry::lastUsed));
+            JsonObject newIndex = new JsonObject();
+            for(Entry entry : entries) {
+                if(size > this.maxSize) {
+                    LOGGER.debug("Removing {} from the mod cache", entry.name());
+                    Files.deleteIfExists(this.directory.resolve(entry.name()));
+                    size -= entry.size();
+                }else {
+                    newIndex.addProperty(entry.name(), entry.lastUsed());
+                }
+            }
+
+            Path tmpFile = this.directory.resolve(INDEX_FILE + ".tmp");
+            Utils.saveJson(newIndex, tmpFile);
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            this.used.clear();
+        }catch(IOException | RuntimeException e) {
+            LOGGER.warn("Failed to clean up the mod cache", e);
+        }
+    }
+
+    // Hard links the file, or copies it if the file system does not support hard links
+    private static void link(Path existing, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, existing);
+        }catch(NoSuchFileException e) {
+            throw e;
+        }catch(UnsupportedOperationException | IOException e) {
+            LOGGER.debug("Could not link {}, copying it instead", existing, e);
+            Files.copy(existing, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // The Base64 alphabet contains '/', so the files are named by the hex encoded hash
+    private static String entryName(String sha1) {
+        return HexFormat.of().formatHex(Base64.getDecoder().decode(sha1)) + ".jar";
+    }
+
+    private static record Entry(String name, long size, long lastUsed) {}
+}
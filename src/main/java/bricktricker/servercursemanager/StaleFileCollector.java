@@ -0,0 +1,134 @@
+package bricktricker.servercursemanager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Removes files from the servermods folder, that are not part of the current modpack anymore.
+ * Stale files are first moved into a quarantine folder, named by the time of the move, and deleted once the grace period is over.
+ * In dry run mode, only a report of the stale files is logged.
+ */
+public class StaleFileCollector {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String QUARANTINE_FOLDER = ".stale";
+    // files that are managed by Server Curse Manager itself
+    private static final Set<String> KEEP = Set.of("files.json", "serverpackutility.jar");
+
+    private final Path folder;
+    private final Duration gracePeriod;
+    private final boolean dryRun;
+
+    /**
+     * @param folder The servermods folder
+     * @param gracePeriod The time stale files are kept in quarantine, before they are deleted. Stale files are deleted immediately, if it is zero.
+     * @param dryRun true, if files should only be reported
+     */
+    public StaleFileCollector(Path folder, Duration gracePeriod, boolean dryRun) {
+        this.folder = folder;
+        this.gracePeriod = gracePeriod;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Quarantines all files in the folder, that are not referenced, and deletes quarantined files after the grace period
+     *
+     * @param referenced The file names of all mods of the current modpack
+     */
+    public void collect(Set<String> referenced) {
+        long now = System.currentTimeMillis();
+        List<Path> stale = new ArrayList<>();
+        long staleSize = 0;
+        try(Stream<Path> files = Files.list(this.folder)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if(name.startsWith(".") || KEEP.contains(name) || referenced.contains(name) || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                stale.add(file);
+                staleSize += Files.size(file);
+            }
+        }catch(IOException e) {
+            LOGGER.warn("Failed to list {}", this.folder, e);
+            return;
+        }
+
+        Path quarantine = this.folder.resolve(QUARANTINE_FOLDER);
+        if(this.dryRun) {
+            stale.forEach(file -> LOGGER.info("Dry run: {} is not part of the modpack anymore", file.getFileName()));
+            LOGGER.info("Dry run: {} stale files ({} KiB) would be removed from {}", stale.size(), staleSize / 1024, this.folder);
+            forEachExpired(quarantine, now, dir -> LOGGER.info("Dry run: quarantined files in {} would be deleted", dir));
+            return;
+        }
+
+        if(!stale.isEmpty()) {
+            Path target = quarantine.resolve(Long.toString(now));
+            int moved = 0;
+            for(Path file : stale) {
+                try {
+                    if(this.gracePeriod.isZero()) {
+                        Files.delete(file);
+                    }else {
+                        Files.createDirectories(target);
+                        Files.move(file, target.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    moved++;
+                }catch(IOException e) {
+                    // e.g. still opened by another process on Windows
+                    LOGGER.warn("Failed to remove stale file {}", file, e);
+                }
+            }
+            LOGGER.info("Removed {} stale files ({} KiB) from {}", moved, staleSize / 1024, this.folder);
+        }
+
+        forEachExpired(quarantine, now, dir -> {
+            LOGGER.debug("Deleting quarantined files in {}", dir);
+            try(Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                    try {
+                        Files.delete(path);
+                    }catch(IOException e) {
+                        LOGGER.warn("Failed to delete {}", path, e);
+                    }
+                });
+            }catch(IOException e) {
+                LOGGER.warn("Failed to delete {}", dir, e);
+            }
+        });
+    }
+
+    // calls the consumer for every quarantine folder, that is older than the grace period
+    private void forEachExpired(Path quarantine, long now, Consumer<Path> consumer) {
+        if(!Files.isDirectory(quarantine)) {
+            return;
+        }
+        try(Stream<Path> dirs = Files.list(quarantine)) {
+            for(Path dir : (Iterable<Path>) dirs::iterator) {
+                long quarantined;
+                try {
+                    quarantined = Long.parseLong(dir.getFileName().toString());
+                }catch(NumberFormatException e) {
+                    continue;
+                }
+                if(now - quarantined >= this.gracePeriod.toMillis()) {
+                    consumer.accept(dir);
+                }
+            }
+        }catch(IOException e) {
+            LOGGER.warn("Failed to list {}", quarantine, e);
+        }
+    }
+}
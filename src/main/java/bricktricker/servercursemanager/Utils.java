@@ -18,6 +18,8 @@ import java.util.zip.ZipEntry;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 
+import bricktricker.servercursemanager.jfr.HashEvent;
+
 public class Utils {
 
 	/**
@@ -113,18 +115,34 @@ public class Utils {
 	}
 	
 	public static byte[] computeSha1(Path file) {
+		HashEvent event = new HashEvent();
+		event.begin();
 		try(var is = Files.newInputStream(file)){
 			return computeSha1(is);
 		}catch(IOException e) {
 			throw new UncheckedIOException(e);
+		}finally {
+			commitHashEvent(event, file);
 		}
 	}
 	
 	public static String computeSha1Str(Path file) {
+		HashEvent event = new HashEvent();
+		event.begin();
 		try(var is = Files.newInputStream(file)){
 			return computeSha1Str(is);
 		}catch(IOException e) {
 			throw new UncheckedIOException(e);
+		}finally {
+			commitHashEvent(event, file);
+		}
+	}
+	
+	private static void commitHashEvent(HashEvent event, Path file) {
+		if(event.shouldCommit()) {
+			event.file = file.toString();
+			event.size = file.toFile().length();
+			event.commit();
 		}
 	}
 
@@ -6,14 +6,24 @@ import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import bricktricker.servercursemanager.networking.CommonChannel;
+import bricktricker.servercursemanager.networking.PacketFilter.PacketStart;
 import bricktricker.servercursemanager.networking.PacketType;
+import bricktricker.servercursemanager.jfr.PackTransferEvent;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 
 public class ClientChannel extends CommonChannel {
 
@@ -21,20 +31,76 @@ public class ClientChannel extends CommonChannel {
 
     private final byte[] currentModpackHash;
     private final Path modpackPath;
+    // hashes of the cached client packs the user has enabled, empty array if not cached
+    private final Map<String, byte[]> clientPackHashes;
+    private final Function<String, Path> clientPackPath;
+    // moves a completely downloaded file to its target, throws an UncheckedIOException if that fails
+    private final BiConsumer<Path, Path> segmentCommitter;
+    // shows the progress of the current packet, null if no progress should be shown
+    private final DownloadProgress progress;
+    // shows a message on the launch screen
+    private final Consumer<String> progressMessages;
 
     private boolean downloadSuccessful = false;
+    // seconds until the client should try again, if the transfer queue of the server is full
+    private int retryAfter = 0;
+    // true, while the client waits for a transfer slot and the server sends nothing
+    private boolean queued = false;
 
-    public ClientChannel(byte[] currentModpackHash, Path modpackPath) {
+    private boolean requestSent = false;
+    private PackTransferEvent transferEvent;
+
+    public ClientChannel(byte[] currentModpackHash, Path modpackPath, Map<String, byte[]> clientPackHashes, Function<String, Path> clientPackPath, BiConsumer<Path, Path> segmentCommitter, DownloadProgress progress, Consumer<String> progressMessages) {
         this.currentModpackHash = currentModpackHash;
         this.modpackPath = modpackPath;
+        this.clientPackHashes = clientPackHashes;
+        this.clientPackPath = clientPackPath;
+        this.segmentCommitter = segmentCommitter;
+        this.progress = progress;
+        this.progressMessages = progressMessages;
+    }
+
+    // The handler is added once the TLS handshake is done, so the channel is already active
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if(ctx.channel().isActive()) {
+            sendRequest(ctx);
+        }
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        int payloadLen = 4 + this.currentModpackHash.length;
-        ByteBuf buf = writeHeader(ctx.alloc(), payloadLen, PacketType.MODPACK_REQUEST);
+        sendRequest(ctx);
+    }
+
+    private void sendRequest(ChannelHandlerContext ctx) {
+        if(this.requestSent) {
+            return;
+        }
+        this.requestSent = true;
+        this.transferEvent = new PackTransferEvent();
+        this.transferEvent.begin();
+
+        List<byte[]> packNames = new ArrayList<>(this.clientPackHashes.size());
+        int payloadLen = 4 + this.currentModpackHash.length + 4;
+        for(var pack : this.clientPackHashes.entrySet()) {
+            byte[] name = pack.getKey().getBytes(StandardCharsets.UTF_8);
+            packNames.add(name);
+            payloadLen += 4 + name.length + 4 + pack.getValue().length;
+        }
+
+        ByteBuf buf = writeHeader(ctx.alloc(), payloadLen, PacketType.SEGMENTED_MODPACK_REQUEST);
         buf.writeInt(this.currentModpackHash.length);
         buf.writeBytes(this.currentModpackHash);
+        buf.writeInt(this.clientPackHashes.size());
+        int i = 0;
+        for(byte[] packHash : this.clientPackHashes.values()) {
+            byte[] name = packNames.get(i++);
+            buf.writeInt(name.length);
+            buf.writeBytes(name);
+            buf.writeInt(packHash.length);
+            buf.writeBytes(packHash);
+        }
         ctx.writeAndFlush(buf);
     }
 
@@ -45,8 +111,10 @@ public class ClientChannel extends CommonChannel {
         PacketType packetType = PacketType.values()[packetTypeIdx];
 
         try {
-            if(packetType == PacketType.MODPACK_RESPONSE) {
+            if(packetType == PacketType.SEGMENTED_MODPACK_RESPONSE) {
                 handleModpack(ctx, packet);
+            }else if (packetType == PacketType.QUEUE_STATUS) {
+                handleQueueStatus(ctx, packet);
             }else if (packetType == PacketType.ERROR) {
                 handleServerError(ctx, packet);
             } else {
@@ -62,22 +130,65 @@ public class ClientChannel extends CommonChannel {
 
     private void handleModpack(ChannelHandlerContext ctx, ByteBuf response) {
         LOGGER.debug("Received the modpack");
+        int size = response.readableBytes();
 
-        byte status = response.readByte();
-        if (status == 0) {
-            int packLength = response.readInt();
-            byte[] modpack = new byte[packLength];
-            response.readBytes(modpack);
-            try (OutputStream os = Files.newOutputStream(this.modpackPath)) {
-                os.write(modpack);
-            } catch (IOException e) {
-                LOGGER.catching(e);
+        int updatedSegments;
+        try {
+            updatedSegments = readSegment(response, this.modpackPath, this.segmentCommitter);
+
+            int numClientPacks = response.readInt();
+            for (int i = 0; i < numClientPacks; i++) {
+                String name = new String(readBuffer(response, 256), StandardCharsets.UTF_8);
+                LOGGER.debug("Received client pack {}", name);
+                updatedSegments += readSegment(response, this.clientPackPath.apply(name), this.segmentCommitter);
             }
+        } catch (IOException | UncheckedIOException e) {
+            // The download failed, the cached packs are used
+            LOGGER.error("Failed to save the modpack", e);
+            ctx.close();
+            return;
         }
         this.downloadSuccessful = true;
+        if(this.transferEvent != null && this.transferEvent.shouldCommit()) {
+            this.transferEvent.size = size;
+            this.transferEvent.updatedSegments = updatedSegments;
+        }
         ctx.close();
     }
 
+    // Writes the segment to the target file, if the server send a newer version, returns 1 if the segment was updated
+    private static int readSegment(ByteBuf response, Path target, BiConsumer<Path, Path> segmentCommitter) throws IOException {
+        byte status = response.readByte();
+        if (status != 0) {
+            return 0;
+        }
+        int packLength = response.readInt();
+        int segmentEnd = response.readerIndex() + packLength;
+        // The file is written next to the target first, so the target is never incomplete
+        Path download = target.resolveSibling(target.getFileName() + ".download");
+        try (OutputStream os = Files.newOutputStream(download)) {
+            response.readBytes(os, packLength);
+        }
+        segmentCommitter.accept(download, target);
+        response.readerIndex(segmentEnd);
+        return 1;
+    }
+
+    private void handleQueueStatus(ChannelHandlerContext ctx, ByteBuf packet) {
+        int position = packet.readInt();
+        int retryAfterSeconds = packet.readInt();
+        if(retryAfterSeconds > 0) {
+            LOGGER.info("Server is busy, retrying in {} seconds", retryAfterSeconds);
+            this.progressMessages.accept("Server is busy, retrying in " + retryAfterSeconds + " seconds");
+            this.retryAfter = retryAfterSeconds;
+            ctx.close();
+        }else {
+            LOGGER.debug("Waiting for a download slot, position {}", position);
+            this.queued = true;
+            this.progressMessages.accept("Waiting for a download slot, position " + position);
+        }
+    }
+
     private void handleServerError(ChannelHandlerContext ctx, ByteBuf packet) {
         byte[] errorBytes = readBuffer(packet, 2048);
         String error = new String(errorBytes, StandardCharsets.UTF_8);
@@ -87,6 +198,37 @@ public class ClientChannel extends CommonChannel {
         throw new UncheckedIOException(new IOException(error));
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        // The server sends nothing while the client is queued, otherwise the connection stalled
+        if(evt instanceof IdleStateEvent idleEvent && idleEvent.state() == IdleState.READER_IDLE && !this.queued) {
+            LOGGER.warn("Server stopped sending data, closing the connection");
+            ctx.close();
+            return;
+        }
+        if(evt instanceof PacketStart packetStart) {
+            // The server sends the next packet, so the client is not waiting in the queue anymore
+            this.queued = false;
+            if(this.progress != null) {
+                this.progress.start(packetStart.length());
+            }
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if(this.transferEvent != null && this.transferEvent.shouldCommit()) {
+            this.transferEvent.side = "client";
+            this.transferEvent.remoteAddress = String.valueOf(ctx.channel().remoteAddress());
+            this.transferEvent.success = this.downloadSuccessful;
+            this.transferEvent.commit();
+        }
+        this.transferEvent = null;
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         // Close the connection when an exception is raised.
@@ -98,4 +240,11 @@ public class ClientChannel extends CommonChannel {
         return this.downloadSuccessful;
     }
 
+    /**
+     * @return The seconds the server asked the client to wait before connecting again, 0 if the server did not reject the client
+     */
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+
 }
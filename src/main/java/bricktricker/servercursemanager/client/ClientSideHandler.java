@@ -1,22 +1,26 @@
 package bricktricker.servercursemanager.client;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.electronwill.nightconfig.core.UnmodifiableConfig;
 import com.electronwill.nightconfig.core.file.CommentedFileConfig;
 import com.electronwill.nightconfig.core.file.FileConfig;
 import com.electronwill.nightconfig.core.file.FileNotFoundAction;
@@ -24,17 +28,34 @@ import com.electronwill.nightconfig.core.io.WritingMode;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import bricktricker.servercursemanager.CopyOption;
 import bricktricker.servercursemanager.CurseDownloader;
+import bricktricker.servercursemanager.HashIndex;
+import bricktricker.servercursemanager.ModCache;
 import bricktricker.servercursemanager.SideHandler;
+import bricktricker.servercursemanager.StaleFileCollector;
 import bricktricker.servercursemanager.Utils;
 import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
 import cpw.mods.forge.serverpacklocator.ModAccessor;
+import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager;
 
 public class ClientSideHandler extends SideHandler {
 
+	// in MiB
+	private static final long DEFAULT_MOD_CACHE_SIZE = 4096;
+	// in seconds
+	private static final int DEFAULT_STARTUP_DEADLINE = 30;
+	// in minutes
+	private static final int DEFAULT_UPDATE_CHECK_INTERVAL = 30;
+	// in KiB/s
+	private static final long DEFAULT_BACKGROUND_BANDWIDTH = 1024;
+
 	private SimpleClient httpClient;
+	private HashIndex hashIndex;
+	private IncrementalInstaller installer;
+	private ModCache modCache;
 
 	private String status = "";
 	
@@ -54,6 +75,7 @@ public class ClientSideHandler extends SideHandler {
 		this.packConfig.load();
 		
 		ModAccessor.clientPackSelectionConsumer = this::handleClientPackSelection;
+		ModAccessor.setPackUpdateCheck(this::checkForUpdate, this.getUpdateCheckInterval());
 	}
 
 	@Override
@@ -93,17 +115,24 @@ public class ClientSideHandler extends SideHandler {
 	public void initialize() {
 		super.initialize();
 
+		// Load the profile key pair while the cached packs are hashed and the server address is resolved
+		ProfileKeyPairBasedSecurityManager.getProfileKeyPairAsync();
+
+		this.hashIndex = new HashIndex(this.getServerpackFolder().resolve("hashindex.json"), this.verifyHashes());
+		this.installer = new IncrementalInstaller(this.getServerpackFolder().resolve("installstate.json"));
+		this.modCache = this.createModCache();
+
 		final Path modpackZip = this.getServerpackFolder().resolve("modpack.zip");
-		byte[] currentModpackHash = new byte[0];
-		if(Files.exists(modpackZip) && Files.isRegularFile(modpackZip)) {
-			currentModpackHash = Utils.computeSha1(modpackZip);
-		}
+		this.applyStagedDownloads(modpackZip);
+		byte[] currentModpackHash = packHash(this.hashIndex, modpackZip);
+		Map<String, byte[]> clientPackHashes = this.clientPackHashes(this.hashIndex);
 
-		this.httpClient = new SimpleClient(this, currentModpackHash);
+		this.httpClient = new SimpleClient(this, currentModpackHash, clientPackHashes);
 
 		boolean downloadSuccessful = false;
 		try {
-			downloadSuccessful = this.httpClient.waitForResult();
+			// Without a cached modpack, there is nothing to fall back to
+			downloadSuccessful = this.httpClient.waitForResult(currentModpackHash.length > 0 ? this.getStartupDeadline() : 0);
 		}catch(ExecutionException e) {
 			LOGGER.catching(e);
 		}
@@ -120,20 +149,29 @@ public class ClientSideHandler extends SideHandler {
 			LOGGER.warn("Could not download modpack, won't load any mods");
 			LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Could not download modpack, won't load any mods");
 			this.status = "No mods loaded";
+			this.hashIndex.save();
 			return;
 		}
 
 		List<CompletableFuture<String>> futures = new ArrayList<>();
+		ParallelExtractor extractor = new ParallelExtractor(this.installer, Runtime.getRuntime().availableProcessors());
+		DownloadProgress modProgress = new DownloadProgress("mods");
+		ModSources modSources = null;
 
-		try(FileSystem modpackSystem = FileSystems.newFileSystem(modpackZip)) {
+		try {
+		    FileSystem modpackSystem = extractor.open(modpackZip);
 		    Path manifestPath = modpackSystem.getPath("manifest.json");
 			JsonObject manifest = Utils.loadJson(Files.newInputStream(manifestPath)).getAsJsonObject();
 
+			// Servers with a mod mirror serve the remote mods themselves
+			JsonPrimitive mirror = manifest.getAsJsonPrimitive("mirror");
+			modSources = new ModSources(mirror != null && mirror.getAsBoolean() ? this.httpClient.createMirror() : null);
+
 			JsonArray mods = manifest.getAsJsonArray(SideHandler.MODS);
 			int numDownloadThreads = Math.min(Math.max(Runtime.getRuntime().availableProcessors() / 2, 1), Math.max(mods.size(), 1));
 			this.downloadThreadpool = new ThreadPoolExecutor(1, numDownloadThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
 			
-			futures = this.parseMods(modpackSystem, mods);
+			futures.addAll(this.parseMods(extractor, modProgress, modSources, modpackSystem, mods));
 
 			JsonArray additional = manifest.getAsJsonArray(SideHandler.ADDITIONAL);
 			for(JsonElement fileE : additional) {
@@ -141,12 +179,10 @@ public class ClientSideHandler extends SideHandler {
 				CopyOption copyOption = CopyOption.getOption(fileE.getAsJsonObject().getAsJsonPrimitive("copyOption").getAsString());
 				Path fileEntry = modpackSystem.getPath(SideHandler.ADDITIONAL, file);
 				Path destination = LaunchEnvironmentHandler.INSTANCE.getGameDir().resolve(file);
-				Files.createDirectories(destination.getParent());
-				if(copyOption.writeFile(destination)) {
-					Files.copy(fileEntry, destination, StandardCopyOption.REPLACE_EXISTING);
-				}
+				extractor.extract(fileEntry, destination, copyOption, "additional", file);
 			}
 			
+			boolean missingClientPack = false;
 			var clientPacksList = new ArrayList<Pair<String, Boolean>>();
 			JsonArray clientPacks = manifest.getAsJsonArray(SideHandler.CLIENT_PACKS);
 			for(JsonElement packE : clientPacks) {
@@ -166,22 +202,54 @@ public class ClientSideHandler extends SideHandler {
 			            continue;
 			        }
 			        
-			        var clientPackFutures = this.parseMods(modpackSystem, pack.getAsJsonArray("mods"));
+			        Path clientPackZip = this.getClientPackFile(name);
+			        if(!Files.isRegularFile(clientPackZip)) {
+			            LOGGER.warn("Client pack {} is enabled, but was not downloaded yet", name);
+			            missingClientPack = true;
+			            continue;
+			        }
+			        FileSystem clientPackSystem = extractor.open(clientPackZip);
+			        JsonObject clientPackManifest = Utils.loadJson(Files.newInputStream(clientPackSystem.getPath("manifest.json"))).getAsJsonObject();
+			        var clientPackFutures = this.parseMods(extractor, modProgress, modSources, clientPackSystem, clientPackManifest.getAsJsonArray(SideHandler.MODS));
 			        futures.addAll(clientPackFutures);
 			    }
 			}
 			ModAccessor.setClientpacks(clientPacksList);
 			this.packConfig.save();
 
-			this.installTask = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+			// Store the hashes of the downloaded mods, once all downloads and extractions are done
+			HashIndex index = this.hashIndex;
+			ModCache cache = this.modCache;
+			// Old mods are only removed, if the latest modpack is completely installed
+			StaleFileCollector staleFileCollector = downloadSuccessful && !missingClientPack ? this.createStaleFileCollector() : null;
+			Set<String> referencedMods = this.loadedModNames;
+			ModSources sources = modSources;
+			List<CompletableFuture<String>> installFutures = futures;
+			this.installTask = CompletableFuture.allOf(CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)), extractor.finish())
+			        .whenComplete((v, e) -> {
+			            sources.close();
+			            index.save();
+			            if(cache != null) {
+			                cache.evict();
+			            }
+			            // Only remove old mods after a successful install, failed downloads complete with null
+			            if(e == null && staleFileCollector != null && installFutures.stream().allMatch(f -> f.join() != null)) {
+			                staleFileCollector.collect(referencedMods);
+			            }
+			        });
 
 		}catch(Exception e) {
 			LOGGER.catching(e);
 			this.status = "Exception while loading modpack";
+			// close the zip files
+			extractor.finish();
+			if(modSources != null) {
+			    modSources.close();
+			}
 		}
 	}
 	
-	private List<CompletableFuture<String>> parseMods(FileSystem modpackSystem, JsonArray mods) {
+	private List<CompletableFuture<String>> parseMods(ParallelExtractor extractor, DownloadProgress progress, ModSources sources, FileSystem modpackSystem, JsonArray mods) {
 	    final List<CompletableFuture<String>> futures = new ArrayList<>();
 	    for(JsonElement modE : mods) {
             JsonObject mod = modE.getAsJsonObject();
@@ -190,10 +258,14 @@ public class ClientSideHandler extends SideHandler {
                 String url = mod.getAsJsonPrimitive("url").getAsString();
                 String sha1 = mod.getAsJsonPrimitive("sha1").getAsString();
                 String fileName = mod.getAsJsonPrimitive("file").getAsString();
+                // older servers don't send the size
+                if(mod.has("size") && !Files.exists(getServermodsFolder().resolve(fileName))) {
+                    progress.addTotal(mod.getAsJsonPrimitive("size").getAsLong());
+                }
 
                 CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
                     try {
-                        CurseDownloader.downloadFile(url, fileName, sha1, getServermodsFolder());
+                        CurseDownloader.downloadFile(url, fileName, sha1, getServermodsFolder(), this.hashIndex, this.modCache, progress::add, sources);
                         this.loadedModNames.add(fileName);
                         return fileName;
                     }catch(IOException e) {
@@ -207,31 +279,235 @@ public class ClientSideHandler extends SideHandler {
             }else if("local".equals(source)) {
                 String filename = mod.getAsJsonPrimitive("file").getAsString();
                 Path modEntryPath = modpackSystem.getPath("mods", filename);
-                try {
-                    Files.copy(modEntryPath, getServermodsFolder().resolve(filename), StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-                this.loadedModNames.add(filename);
+                CompletableFuture<String> future = extractor.extract(modEntryPath, getServermodsFolder().resolve(filename), CopyOption.OVERWRITE, "mod", filename)
+                        .thenApply(copied -> {
+                            this.loadedModNames.add(filename);
+                            return filename;
+                        });
+                futures.add(future);
             }
         }
 	    
 	    return futures;
 	}
 
+	private ModCache createModCache() {
+	    String cacheDir = this.packConfig.get("client.modCache");
+	    if(cacheDir == null || cacheDir.isBlank()) {
+	        return null;
+	    }
+	    Number cacheSize = this.packConfig.get("client.modCacheSize");
+	    long maxSize = (cacheSize != null ? cacheSize.longValue() : DEFAULT_MOD_CACHE_SIZE) * 1024 * 1024;
+	    Path cachePath = Path.of(cacheDir.replaceFirst("^~", Matcher.quoteReplacement(System.getProperty("user.home"))));
+	    try {
+	        return new ModCache(LaunchEnvironmentHandler.INSTANCE.getGameDir().resolve(cachePath), maxSize);
+	    }catch(IOException | RuntimeException e) {
+	        LOGGER.warn("Could not use the mod cache at {}", cacheDir, e);
+	        return null;
+	    }
+	}
+
+	/**
+	 * @return The hash of the staged pack, or of the cached pack if nothing is staged, or an empty array if there is no cached pack
+	 */
+	private static byte[] packHash(HashIndex index, Path packZip) {
+	    Path staged = packZip.resolveSibling(packZip.getFileName() + SimpleClient.STAGED_SUFFIX);
+	    if(Files.isRegularFile(staged)) {
+	        return index.computeSha1(staged);
+	    }
+	    if(Files.isRegularFile(packZip)) {
+	        return index.computeSha1(packZip);
+	    }
+	    return new byte[0];
+	}
+
+	// Only request the client packs the user has enabled
+	private Map<String, byte[]> clientPackHashes(HashIndex index) {
+	    Map<String, byte[]> clientPackHashes = new LinkedHashMap<>();
+	    UnmodifiableConfig packSelection = this.packConfig.get("packs");
+	    if(packSelection != null) {
+	        for(var pack : packSelection.valueMap().entrySet()) {
+	            if(Boolean.TRUE.equals(pack.getValue())) {
+	                clientPackHashes.put(pack.getKey(), packHash(index, this.getClientPackFile(pack.getKey())));
+	            }
+	        }
+	    }
+	    return clientPackHashes;
+	}
+
+	/**
+	 * Checks the server for a newer modpack while the game is running. A newer modpack and the mods it downloads
+	 * are staged, so the next launch does not need to download anything. Called periodically by the utility mod.
+	 *
+	 * @return true, if an update was staged
+	 */
+	private synchronized boolean checkForUpdate() {
+	    HashIndex index = new HashIndex(this.getServerpackFolder().resolve("hashindex.json"), false);
+	    Path modpackZip = this.getServerpackFolder().resolve("modpack.zip");
+	    SimpleClient updateClient = new SimpleClient(this, packHash(index, modpackZip), this.clientPackHashes(index), true);
+	    try {
+	        updateClient.waitForResult(0);
+	    }catch(ExecutionException e) {
+	        LOGGER.debug("Failed to check for a modpack update", e);
+	        return false;
+	    }
+	    if(!updateClient.hasStaged()) {
+	        index.save();
+	        return false;
+	    }
+
+	    LOGGER.info("Downloaded a modpack update, it is used on the next launch");
+	    ModCache cache = this.createModCache();
+	    List<Path> stagedPacks = new ArrayList<>();
+	    stagedPacks.add(modpackZip.resolveSibling(modpackZip.getFileName() + SimpleClient.STAGED_SUFFIX));
+	    try(var clientPacks = Files.list(Utils.createOrGetDirectory(this.getServerpackFolder(), "clientpacks"))) {
+	        clientPacks.filter(p -> p.getFileName().toString().endsWith(SimpleClient.STAGED_SUFFIX)).forEach(stagedPacks::add);
+	    }catch(IOException e) {
+	        LOGGER.catching(e);
+	    }
+	    for(Path stagedPack : stagedPacks) {
+	        if(Files.isRegularFile(stagedPack)) {
+	            this.prefetchMods(stagedPack, index, cache);
+	        }
+	    }
+	    index.save();
+	    if(cache != null) {
+	        cache.evict();
+	    }
+	    ModAccessor.setStatusLine("ServerPack: Update downloaded, restart to apply");
+	    return true;
+	}
+
+	// Downloads the new remote mods of a staged pack. Mods that already exist are not touched, they might be loaded right now.
+	private void prefetchMods(Path stagedPack, HashIndex index, ModCache cache) {
+	    try(FileSystem packSystem = FileSystems.newFileSystem(stagedPack)) {
+	        JsonObject manifest = Utils.loadJson(Files.newInputStream(packSystem.getPath("manifest.json"))).getAsJsonObject();
+	        for(JsonElement modE : manifest.getAsJsonArray(SideHandler.MODS)) {
+	            JsonObject mod = modE.getAsJsonObject();
+	            if(!"remote".equals(mod.getAsJsonPrimitive("source").getAsString())) {
+	                continue;
+	            }
+	            String fileName = mod.getAsJsonPrimitive("file").getAsString();
+	            if(Files.exists(getServermodsFolder().resolve(fileName))) {
+	                continue;
+	            }
+	            try {
+	                CurseDownloader.downloadFile(mod.getAsJsonPrimitive("url").getAsString(), fileName, mod.getAsJsonPrimitive("sha1").getAsString(), getServermodsFolder(), index, cache, null);
+	            }catch(IOException e) {
+	                LOGGER.warn("Failed to download {} for the next launch", fileName, e);
+	            }
+	        }
+	    }catch(IOException | RuntimeException e) {
+	        LOGGER.warn("Failed to read the staged pack {}", stagedPack, e);
+	    }
+	}
+
+	// Uses the packs, that were downloaded after the startup deadline of the last launch
+	private void applyStagedDownloads(Path modpackZip) {
+	    List<Path> staged = new ArrayList<>();
+	    staged.add(modpackZip.resolveSibling(modpackZip.getFileName() + SimpleClient.STAGED_SUFFIX));
+	    try(var clientPacks = Files.list(Utils.createOrGetDirectory(this.getServerpackFolder(), "clientpacks"))) {
+	        clientPacks.filter(p -> p.getFileName().toString().endsWith(SimpleClient.STAGED_SUFFIX)).forEach(staged::add);
+	    }catch(IOException e) {
+	        LOGGER.catching(e);
+	    }
+	    for(Path stagedFile : staged) {
+	        if(!Files.isRegularFile(stagedFile)) {
+	            continue;
+	        }
+	        String name = stagedFile.getFileName().toString();
+	        Path target = stagedFile.resolveSibling(name.substring(0, name.length() - SimpleClient.STAGED_SUFFIX.length()));
+	        try {
+	            SimpleClient.moveFile(stagedFile, target);
+	            LOGGER.debug("Using staged download {}", target.getFileName());
+	        }catch(IOException e) {
+	            LOGGER.error("Failed to use staged download {}", stagedFile, e);
+	        }
+	    }
+	}
+
+	/**
+	 * @return The collector for old mods in servermods, or null if disabled
+	 */
+	private StaleFileCollector createStaleFileCollector() {
+	    Number graceDays = this.packConfig.get("client.cleanupGraceDays");
+	    int days = graceDays != null ? graceDays.intValue() : 7;
+	    if(days < 0) {
+	        return null;
+	    }
+	    Boolean dryRun = this.packConfig.<Boolean>get("client.cleanupDryRun");
+	    return new StaleFileCollector(getServermodsFolder(), Duration.ofDays(days), dryRun != null && dryRun);
+	}
+
+	/**
+	 * @return The path where the zip file of the client pack with the given name is cached
+	 */
+	public Path getClientPackFile(String name) {
+	    Path clientPacksFolder = Utils.createOrGetDirectory(this.getServerpackFolder(), "clientpacks");
+	    return clientPacksFolder.resolve(name.replaceAll("[^a-zA-Z0-9_.-]", "_") + ".zip");
+	}
+
 	public String getRemoteServer() {
 		return this.packConfig.get("client.remoteServer");
 	}
 	
+	/**
+	 * @return Additional addresses of the same pack server, the client connects to whichever answers first
+	 */
+	public List<String> getMirrors() {
+	    List<String> mirrors = this.packConfig.get("client.mirrors");
+	    return mirrors != null ? mirrors : List.of();
+	}
+	
 	public boolean requireValidCert() {
 	    Boolean validCert = this.packConfig.<Boolean>get("client.validCert");
 	    return validCert != null && validCert;
 	}
+	
+	/**
+	 * @return true, if the hashes of all cached files should be computed again, instead of using the hash index
+	 */
+	public boolean verifyHashes() {
+	    Boolean verifyHashes = this.packConfig.<Boolean>get("client.verifyHashes");
+	    return verifyHashes != null && verifyHashes;
+	}
+	
+	/**
+	 * @return The seconds to wait for the server before the cached modpack is used, 0 to wait until the download is done
+	 */
+	public int getStartupDeadline() {
+	    Number deadline = this.packConfig.get("client.startupDeadline");
+	    return deadline != null ? Math.max(deadline.intValue(), 0) : DEFAULT_STARTUP_DEADLINE;
+	}
+
+	/**
+	 * @return The minutes between two checks for a modpack update while the game is running, 0 if disabled
+	 */
+	public int getUpdateCheckInterval() {
+	    Number interval = this.packConfig.get("client.updateCheckMinutes");
+	    return interval != null ? Math.max(interval.intValue(), 0) : DEFAULT_UPDATE_CHECK_INTERVAL;
+	}
+
+	/**
+	 * @return The bandwidth in bytes per second of downloads while the game is running, 0 if unlimited
+	 */
+	public long getBackgroundBandwidth() {
+	    Number bandwidth = this.packConfig.get("client.backgroundBandwidth");
+	    return (bandwidth != null ? Math.max(bandwidth.longValue(), 0) : DEFAULT_BACKGROUND_BANDWIDTH) * 1024;
+	}
+
+	public boolean useOpenSsl() {
+	    Boolean openSsl = this.packConfig.<Boolean>get("client.openssl");
+	    return openSsl != null && openSsl;
+	}
 
 	@Override
 	public void doCleanup() {
 		super.doCleanup();
 		this.httpClient = null;
+		this.hashIndex = null;
+		this.installer = null;
+		this.modCache = null;
 	}
 
 	@Override
@@ -0,0 +1,165 @@
+package bricktricker.servercursemanager.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bricktricker.servercursemanager.jfr.ConnectEvent;
+import bricktricker.servercursemanager.jfr.HandshakeEvent;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Connects to several addresses of the server at once, like Happy Eyeballs (RFC 8305).
+ * The attempts are started one after another with a short delay, or as soon as the previous attempt failed.
+ * The first connection that completes its TLS handshake is used, all other connections are closed.
+ * All state is only accessed on the event loop.
+ */
+final class ConnectionRace {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    /**
+     * @param host The host name, used for the TLS handshake
+     */
+    record Endpoint(String host, InetSocketAddress address) {}
+
+    private final EventLoop loop;
+    private final List<Endpoint> endpoints;
+    // creates a bootstrap with an SslHandler in its pipeline
+    private final Function<Endpoint, Bootstrap> bootstrapFactory;
+    private final Promise<Channel> winner;
+    private final List<Channel> channels = new ArrayList<>();
+
+    private Endpoint winningEndpoint;
+    private int next = 0;
+    private int running = 0;
+    private ScheduledFuture<?> nextAttempt;
+    private Throwable lastCause;
+
+    ConnectionRace(EventLoop loop, List<Endpoint> endpoints, Function<Endpoint, Bootstrap> bootstrapFactory) {
+        this.loop = loop;
+        this.endpoints = endpoints;
+        this.bootstrapFactory = bootstrapFactory;
+        this.winner = loop.newPromise();
+    }
+
+    /**
+     * @return A future, that completes with the first channel that completed its handshake
+     */
+    Future<Channel> start() {
+        if(this.endpoints.isEmpty()) {
+            this.winner.tryFailure(new IllegalStateException("No server address to connect to"));
+        }else {
+            this.loop.execute(this::startNext);
+        }
+        return this.winner;
+    }
+
+    /**
+     * @return The endpoint of the winning channel, only valid once the future of {@link #start()} succeeded
+     */
+    Endpoint getWinner() {
+        return this.winningEndpoint;
+    }
+
+    private void startNext() {
+        if(this.winner.isDone() || this.next >= this.endpoints.size()) {
+            return;
+        }
+        if(this.nextAttempt != null) {
+            this.nextAttempt.cancel(false);
+        }
+        Endpoint endpoint = this.endpoints.get(this.next++);
+        this.running++;
+        LOGGER.debug("Connecting to {} ({})", endpoint.host(), endpoint.address());
+
+        ConnectEvent connectEvent = new ConnectEvent();
+        connectEvent.begin();
+        ChannelFuture connect = this.bootstrapFactory.apply(endpoint).group(this.loop).connect(endpoint.address());
+        this.channels.add(connect.channel());
+        connect.addListener(f -> {
+            if(connectEvent.shouldCommit()) {
+                connectEvent.address = endpoint.address().getAddress().getHostAddress();
+                connectEvent.port = endpoint.address().getPort();
+                connectEvent.success = f.isSuccess();
+                connectEvent.commit();
+            }
+            if(!f.isSuccess()) {
+                attemptFailed(endpoint, f.cause());
+                return;
+            }
+
+            HandshakeEvent handshakeEvent = new HandshakeEvent();
+            handshakeEvent.begin();
+            SslHandler sslHandler = connect.channel().pipeline().get(SslHandler.class);
+            sslHandler.handshakeFuture().addListener(h -> {
+                if(handshakeEvent.shouldCommit()) {
+                    handshakeEvent.side = "client";
+                    handshakeEvent.remoteAddress = String.valueOf(endpoint.address());
+                    handshakeEvent.success = h.isSuccess();
+                    if(h.isSuccess()) {
+                        handshakeEvent.cipherSuite = sslHandler.engine().getSession().getCipherSuite();
+                    }
+                    handshakeEvent.commit();
+                }
+                if(!h.isSuccess()) {
+                    connect.channel().close();
+                    attemptFailed(endpoint, h.cause());
+                    return;
+                }
+                if(this.winner.isDone()) {
+                    // another connection was faster
+                    connect.channel().close();
+                    return;
+                }
+                this.winningEndpoint = endpoint;
+                this.winner.setSuccess(connect.channel());
+                closeLosers(connect.channel());
+            });
+        });
+
+        if(this.next < this.endpoints.size()) {
+            this.nextAttempt = this.loop.schedule(this::startNext, ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void attemptFailed(Endpoint endpoint, Throwable cause) {
+        this.running--;
+        this.lastCause = cause;
+        LOGGER.debug("Connection to {} ({}) failed", endpoint.host(), endpoint.address(), cause);
+        if(this.winner.isDone()) {
+            return;
+        }
+        if(this.next < this.endpoints.size()) {
+            // don't wait for the delay, if the attempt failed anyway
+            startNext();
+        }else if(this.running == 0) {
+            this.winner.tryFailure(this.lastCause);
+        }
+    }
+
+    private void closeLosers(Channel winnerChannel) {
+        if(this.nextAttempt != null) {
+            this.nextAttempt.cancel(false);
+        }
+        for(Channel channel : this.channels) {
+            if(channel != winnerChannel) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package bricktricker.servercursemanager.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
+
+/**
+ * Tracks the downloaded bytes of the pack transfer or the mod downloads, and shows the progress, the throughput and
+ * the remaining time as progress message. Bytes can be added from several threads, the message is updated at most once per second.
+ */
+public class DownloadProgress {
+
+    private static final long UPDATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // weight of the newest throughput sample
+    private static final double SMOOTHING = 0.3;
+
+    private final String label;
+    private final LongAdder done = new LongAdder();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong lastUpdate;
+
+    // only accessed while reporting
+    private long lastDone = 0;
+    private double bytesPerSecond = -1;
+
+    /**
+     * @param label What is downloaded, e.g. "modpack"
+     */
+    public DownloadProgress(String label) {
+        this.label = label;
+        this.lastUpdate = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Starts a new download with the given size, e.g. a new packet
+     */
+    public void start(long totalBytes) {
+        synchronized(this) {
+            this.done.reset();
+            this.lastDone = 0;
+        }
+        this.total.set(totalBytes);
+    }
+
+    public void addTotal(long bytes) {
+        this.total.addAndGet(bytes);
+    }
+
+    public void add(long bytes) {
+        this.done.add(bytes);
+        long now = System.nanoTime();
+        long last = this.lastUpdate.get();
+        if(now - last >= UPDATE_INTERVAL_NANOS && this.lastUpdate.compareAndSet(last, now)) {
+            report(now - last);
+        }
+    }
+
+    private synchronized void report(long elapsedNanos) {
+        long done = this.done.sum();
+        long total = this.total.get();
+        double sample = (done - this.lastDone) / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        this.lastDone = done;
+        this.bytesPerSecond = this.bytesPerSecond < 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * this.bytesPerSecond;
+
+        StringBuilder message = new StringBuilder("Downloading ").append(this.label).append(": ").append(formatBytes(done));
+        if(total > 0) {
+            message.append(" of ").append(formatBytes(total)).append(" (").append(Math.min(100, done * 100 / total)).append("%)");
+        }
+        message.append(", ").append(formatBytes((long) this.bytesPerSecond)).append("/s");
+        if(total > done && this.bytesPerSecond > 0) {
+            long remaining = (long) ((total - done) / this.bytesPerSecond);
+            message.append(", ").append(String.format("%d:%02d", remaining / 60, remaining % 60)).append(" remaining");
+        }
+        LaunchEnvironmentHandler.INSTANCE.addProgressMessage(message.toString());
+    }
+
+    static String formatBytes(long bytes) {
+        if(bytes < 1024) {
+            return bytes + " B";
+        }
+        if(bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+}
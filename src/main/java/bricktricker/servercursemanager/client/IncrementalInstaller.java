@@ -0,0 +1,172 @@
+package bricktricker.servercursemanager.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import bricktricker.servercursemanager.CopyOption;
+import bricktricker.servercursemanager.Utils;
+
+/**
+ * Copies files out of the modpack zip, but skips files that are already identical to the zip entry.
+ * The CRC and size of every installed file are remembered, together with the modification time of the destination,
+ * so unchanged files are detected without reading them.
+ */
+public class IncrementalInstaller {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Path stateFile;
+    private final Map<String, Installed> installed = new ConcurrentHashMap<>();
+    // directories that were already created, so concurrent installs don't create them again
+    private final Map<Path, Boolean> createdDirectories = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    public IncrementalInstaller(Path stateFile) {
+        this.stateFile = stateFile;
+        load();
+    }
+
+    /**
+     * Copies the zip entry to the destination, if the copy option allows it and the destination differs from the entry
+     *
+     * @return true, if the file was written
+     */
+    public boolean install(Path entry, Path destination, CopyOption copyOption) throws IOException {
+        if(!copyOption.writeFile(destination)) {
+            return false;
+        }
+
+        long crc = (Long) Files.getAttribute(entry, "zip:crc");
+        long size = Files.size(entry);
+        String key = destination.toAbsolutePath().normalize().toString();
+        Installed previous = this.installed.get(key);
+
+        // sync only overwrites local changes, if the file in the modpack changed
+        if(copyOption == CopyOption.SYNC && previous != null && previous.crc() == crc && previous.size() == size && Files.exists(destination)) {
+            return false;
+        }
+        if(isIdentical(key, destination, previous, crc, size)) {
+            return false;
+        }
+
+        createDirectories(destination.getParent());
+        Files.copy(entry, destination, StandardCopyOption.REPLACE_EXISTING);
+        record(key, destination, crc, size);
+        return true;
+    }
+
+    /**
+     * Writes the state of the installed files to disk, if it changed
+     */
+    public void save() {
+        if(!this.dirty) {
+            return;
+        }
+
+        JsonObject state = new JsonObject();
+        this.installed.forEach((path, file) -> {
+            JsonObject fileJson = new JsonObject();
+            fileJson.addProperty("crc", file.crc());
+            fileJson.addProperty("size", file.size());
+            fileJson.addProperty("modified", file.modified());
+            state.add(path, fileJson);
+        });
+
+        try {
+            Path tmpFile = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+            Utils.saveJson(state, tmpFile);
+            try {
+                Files.move(tmpFile, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, this.stateFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.dirty = false;
+        }catch(IOException | RuntimeException e) {
+            LOGGER.warn("Failed to save the install state", e);
+        }
+    }
+
+    private boolean isIdentical(String key, Path destination, Installed previous, long crc, long size) throws IOException {
+        if(!Files.isRegularFile(destination) || Files.size(destination) != size) {
+            return false;
+        }
+        long modified = Files.getLastModifiedTime(destination).toMillis();
+        if(previous != null && previous.modified() == modified) {
+            return previous.crc() == crc && previous.size() == size;
+        }
+
+        // Unknown or modified file with the same size, compare the content
+        if(computeCrc(destination) != crc) {
+            return false;
+        }
+        record(key, destination, crc, size);
+        return true;
+    }
+
+    private void createDirectories(Path directory) throws IOException {
+        try {
+            this.createdDirectories.computeIfAbsent(directory, dir -> {
+                try {
+                    Files.createDirectories(dir);
+                    return Boolean.TRUE;
+                }catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void record(String key, Path destination, long crc, long size) throws IOException {
+        this.installed.put(key, new Installed(crc, size, Files.getLastModifiedTime(destination).toMillis()));
+        this.dirty = true;
+    }
+
+    private static long computeCrc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try(InputStream is = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while((len = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private void load() {
+        if(!Files.isRegularFile(this.stateFile)) {
+            return;
+        }
+        try {
+            JsonObject state = Utils.loadJson(this.stateFile).getAsJsonObject();
+            for(Map.Entry<String, JsonElement> e : state.entrySet()) {
+                JsonObject file = e.getValue().getAsJsonObject();
+                this.installed.put(e.getKey(), new Installed(
+                        file.getAsJsonPrimitive("crc").getAsLong(),
+                        file.getAsJsonPrimitive("size").getAsLong(),
+                        file.getAsJsonPrimitive("modified").getAsLong()));
+            }
+        }catch(RuntimeException e) {
+            LOGGER.warn("Failed to load the install state, comparing all files again", e);
+            this.installed.clear();
+        }
+    }
+
+    private static record Installed(long crc, long size, long modified) {}
+}
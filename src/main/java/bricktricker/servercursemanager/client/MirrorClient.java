@@ -0,0 +1,219 @@
+package bricktricker.servercursemanager.client;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bricktricker.servercursemanager.client.ConnectionRace.Endpoint;
+import bricktricker.servercursemanager.networking.CommonChannel;
+import bricktricker.servercursemanager.networking.PacketFilter;
+import bricktricker.servercursemanager.networking.PacketType;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+
+/**
+ * Downloads mods from the pack server, if it mirrors the curse mods. All requests are send over a single connection,
+ * that is opened with the first request, and the server answers them one after another. Every mod waits for a free
+ * transfer slot of the server.
+ */
+final class MirrorClient implements Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // The server closes the connection, if a client requests more mods at once
+    private static final int MAX_REQUESTS = 16;
+
+    private final Endpoint endpoint;
+    // creates a bootstrap with an SslHandler in its pipeline
+    private final Function<Endpoint, Bootstrap> bootstrapFactory;
+    // the running requests by the hash of the mod
+    private final Map<String, CompletableFuture<ByteBuf>> pending = new ConcurrentHashMap<>();
+    private final Semaphore requests = new Semaphore(MAX_REQUESTS);
+
+    private EventLoopGroup group;
+    private Channel channel;
+    // set once the connection failed or was closed, the mirror is not used anymore afterwards
+    private volatile IOException failure;
+
+    MirrorClient(Endpoint endpoint, Function<Endpoint, Bootstrap> bootstrapFactory) {
+        this.endpoint = endpoint;
+        this.bootstrapFactory = bootstrapFactory;
+    }
+
+    /**
+     * Requests the mod and waits until it was received
+     *
+     * @param sha1 The Base64 encoded SHA-1 of the mod
+     * @return The content of the mod
+     * @throws FileNotFoundException If the server does not mirror the mod
+     * @throws IOException If the connection to the server failed
+     */
+    InputStream open(String sha1) throws IOException {
+        try {
+            this.requests.acquire();
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to request " + sha1);
+        }
+        try {
+            return request(sha1);
+        }finally {
+            this.requests.release();
+        }
+    }
+
+    private InputStream request(String sha1) throws IOException {
+        CompletableFuture<ByteBuf> response = new CompletableFuture<>();
+        if(this.pending.putIfAbsent(sha1, response) != null) {
+            throw new IOException("The mod " + sha1 + " is already requested");
+        }
+        try {
+            Channel channel = connect();
+            channel.writeAndFlush(MirrorChannel.modRequest(channel.alloc(), sha1)).addListener(f -> {
+                if(!f.isSuccess()) {
+                    response.completeExceptionally(new IOException("Failed to request " + sha1, f.cause()));
+                }
+            });
+            return new ByteBufInputStream(response.get(), true);
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + sha1);
+        }catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        }finally {
+            this.pending.remove(sha1, response);
+        }
+    }
+
+    private synchronized Channel connect() throws IOException {
+        if(this.failure != null) {
+            throw this.failure;
+        }
+        if(this.channel != null) {
+            return this.channel;
+        }
+        this.group = new NioEventLoopGroup(1, new DefaultThreadFactory("ServerCurseManager-Mirror", true));
+        Future<Channel> winner = new ConnectionRace(this.group.next(), List.of(this.endpoint), this.bootstrapFactory).start().awaitUninterruptibly();
+        if(!winner.isSuccess()) {
+            fail(new IOException("Could not connect to the mod mirror at " + this.endpoint.host(), winner.cause()));
+            throw this.failure;
+        }
+        LOGGER.debug("Connected to the mod mirror at {} ({})", this.endpoint.host(), this.endpoint.address());
+        Channel channel = winner.getNow();
+        channel.pipeline().addLast("filter", new PacketFilter(Integer.MAX_VALUE));
+        channel.pipeline().addLast("mirror", new MirrorChannel());
+        channel.closeFuture().addListener(f -> fail(new IOException("The connection to the mod mirror was closed")));
+        this.channel = channel;
+        return channel;
+    }
+
+    // fails all running requests
+    private void fail(IOException e) {
+        if(this.failure == null) {
+            this.failure = e;
+        }
+        this.pending.values().forEach(response -> response.completeExceptionally(e));
+    }
+
+    @Override
+    public synchronized void close() {
+        fail(new IOException("The mod mirror is closed"));
+        if(this.channel != null) {
+            this.channel.close();
+        }
+        if(this.group != null) {
+            this.group.shutdownGracefully();
+        }
+    }
+
+    private class MirrorChannel extends CommonChannel {
+
+        // true, while the client waits for a transfer slot and the server sends nothing
+        private boolean queued = false;
+
+        static ByteBuf modRequest(ByteBufAllocator alloc, String sha1) {
+            byte[] hash = sha1.getBytes(StandardCharsets.UTF_8);
+            ByteBuf buf = writeHeader(alloc, 4 + hash.length, PacketType.MOD_REQUEST);
+            buf.writeInt(hash.length);
+            buf.writeBytes(hash);
+            return buf;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf packet = (ByteBuf) msg;
+            try {
+                PacketType packetType = PacketType.values()[packet.readByte()];
+                if(packetType == PacketType.MOD_RESPONSE) {
+                    this.queued = false;
+                    String sha1 = new String(readBuffer(packet, 64), StandardCharsets.UTF_8);
+                    boolean found = packet.readByte() == 0;
+                    CompletableFuture<ByteBuf> response = pending.get(sha1);
+                    if(response == null) {
+                        LOGGER.debug("Received mod {}, that was not requested", sha1);
+                    }else if(!found) {
+                        response.completeExceptionally(new FileNotFoundException("The server does not mirror " + sha1));
+                    }else if(!response.complete(packet.retain())) {
+                        packet.release();
+                    }
+                }else if(packetType == PacketType.QUEUE_STATUS) {
+                    int position = packet.readInt();
+                    if(packet.readInt() > 0) {
+                        LOGGER.debug("Mod mirror is busy");
+                        ctx.close();
+                    }else {
+                        LOGGER.debug("Waiting for a mirror slot, position {}", position);
+                        this.queued = true;
+                    }
+                }else {
+                    LOGGER.warn("Received unexpected packet with type {} from the mod mirror", packetType);
+                    ctx.close();
+                }
+            }finally {
+                packet.release();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if(evt instanceof IdleStateEvent idleEvent && idleEvent.state() == IdleState.READER_IDLE && !this.queued && !pending.isEmpty()) {
+                LOGGER.warn("Mod mirror stopped sending data, closing the connection");
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.catching(cause);
+            ctx.close();
+        }
+    }
+}
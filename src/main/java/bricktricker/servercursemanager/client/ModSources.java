@@ -0,0 +1,156 @@
+package bricktricker.servercursemanager.client;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bricktricker.servercursemanager.CurseDownloader;
+
+/**
+ * Chooses between the CDN and the mod mirror of the pack server for every mod download. Each source is tried once,
+ * afterwards the mods are downloaded from the source with the higher measured throughput. If the connection to the mirror
+ * fails, the remaining mods are downloaded from the CDN.
+ */
+final class ModSources implements CurseDownloader.Source, Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // weight of the newest throughput sample
+    private static final double SMOOTHING = 0.5;
+
+    private final MirrorClient mirror;
+    // guarded by this
+    private final Rate cdnRate = new Rate();
+    private final Rate mirrorRate = new Rate();
+    private boolean mirrorFailed = false;
+
+    /**
+     * @param mirror The mirror, or null if the server does not mirror the mods
+     */
+    ModSources(MirrorClient mirror) {
+        this.mirror = mirror;
+    }
+
+    @Override
+    public InputStream open(String downloadURL, String sha1) throws IOException {
+        Rate rate = choose();
+        if(rate == this.mirrorRate) {
+            long start = System.nanoTime();
+            try {
+                return new MeasuredStream(this.mirror.open(sha1), rate, start);
+            }catch(FileNotFoundException e) {
+                finished(rate, -1, 0);
+                LOGGER.debug("{} is not mirrored, downloading it from the CDN", downloadURL);
+            }catch(IOException e) {
+                synchronized(this) {
+                    this.mirrorFailed = true;
+                }
+                finished(rate, -1, 0);
+                LOGGER.warn("Mod mirror failed, downloading the mods from the CDN", e);
+            }
+            synchronized(this) {
+                rate = this.cdnRate;
+                rate.running++;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            return new MeasuredStream(CurseDownloader.CDN.open(downloadURL, sha1), rate, start);
+        }catch(IOException e) {
+            finished(rate, -1, 0);
+            throw e;
+        }
+    }
+
+    // Probes a source without a measurement, otherwise uses the faster one
+    private synchronized Rate choose() {
+        Rate rate;
+        if(this.mirror == null || this.mirrorFailed) {
+            rate = this.cdnRate;
+        }else if(this.mirrorRate.bytesPerSecond < 0 && this.mirrorRate.running == 0) {
+            rate = this.mirrorRate;
+        }else if(this.cdnRate.bytesPerSecond < 0 && this.cdnRate.running == 0) {
+            rate = this.cdnRate;
+        }else {
+            rate = this.mirrorRate.bytesPerSecond > this.cdnRate.bytesPerSecond ? this.mirrorRate : this.cdnRate;
+        }
+        rate.running++;
+        return rate;
+    }
+
+    // Records a download, bytes is negative if it failed
+    private synchronized void finished(Rate rate, long bytes, long nanos) {
+        rate.running--;
+        if(bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double sample = bytes / (nanos / (double) TimeUnit.SECONDS.toNanos(1));
+        rate.bytesPerSecond = rate.bytesPerSecond < 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * rate.bytesPerSecond;
+        rate.downloads++;
+    }
+
+    @Override
+    public void close() {
+        if(this.mirror != null) {
+            synchronized(this) {
+                LOGGER.debug("Downloaded {} mods from the mirror ({} KiB/s) and {} from the CDN ({} KiB/s)",
+                        this.mirrorRate.downloads, (long) this.mirrorRate.bytesPerSecond / 1024, this.cdnRate.downloads, (long) this.cdnRate.bytesPerSecond / 1024);
+            }
+            this.mirror.close();
+        }
+    }
+
+    private static class Rate {
+        double bytesPerSecond = -1;
+        int running = 0;
+        int downloads = 0;
+    }
+
+    // Measures the throughput from opening the source until the stream is closed
+    private class MeasuredStream extends FilterInputStream {
+
+        private final Rate rate;
+        private final long start;
+        private long bytes = 0;
+        private boolean closed = false;
+
+        MeasuredStream(InputStream in, Rate rate, long start) {
+            super(in);
+            this.rate = rate;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) {
+                this.bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0) {
+                this.bytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!this.closed) {
+                this.closed = true;
+                finished(this.rate, this.bytes, System.nanoTime() - this.start);
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package bricktricker.servercursemanager.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bricktricker.servercursemanager.CopyOption;
+import bricktricker.servercursemanager.jfr.InstallFileEvent;
+
+/**
+ * Extracts files out of the modpack zips on a bounded pool. Every zip is opened once, so its central directory is
+ * only read once, and the entries are inflated concurrently. The zips stay open until all extractions are done.
+ */
+public class ParallelExtractor {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final IncrementalInstaller installer;
+    private final ExecutorService pool;
+    private final List<FileSystem> fileSystems = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<Boolean>> extractions = new CopyOnWriteArrayList<>();
+
+    public ParallelExtractor(IncrementalInstaller installer, int threads) {
+        this.installer = installer;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "ServerCurseManager-Extract-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ((ThreadPoolExecutor) this.pool).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Opens the zip file. It is closed by {@link #finish()}.
+     */
+    public FileSystem open(Path zip) throws IOException {
+        FileSystem fileSystem = FileSystems.newFileSystem(zip);
+        this.fileSystems.add(fileSystem);
+        return fileSystem;
+    }
+
+    /**
+     * Extracts the entry on the pool
+     *
+     * @param kind The kind of the file, used for the {@link InstallFileEvent}
+     * @param file The name of the file, used for the {@link InstallFileEvent}
+     * @return A future, that completes with true, if the file was written
+     * @see IncrementalInstaller#install(Path, Path, CopyOption)
+     */
+    public CompletableFuture<Boolean> extract(Path entry, Path destination, CopyOption copyOption, String kind, String file) {
+        CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> {
+            InstallFileEvent installEvent = new InstallFileEvent();
+            installEvent.begin();
+            try {
+                installEvent.copied = this.installer.install(entry, destination, copyOption);
+            }catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if(installEvent.shouldCommit()) {
+                installEvent.kind = kind;
+                installEvent.file = file;
+                installEvent.size = destination.toFile().length();
+                installEvent.commit();
+            }
+            return installEvent.copied;
+        }, this.pool);
+        this.extractions.add(future);
+        return future;
+    }
+
+    /**
+     * @return A future, that completes once all extractions are done. The zip files are closed and the install state is saved afterwards.
+     */
+    public CompletableFuture<Void> finish() {
+        return CompletableFuture.allOf(this.extractions.toArray(CompletableFuture[]::new))
+                .whenComplete((v, e) -> {
+                    for(FileSystem fileSystem : this.fileSystems) {
+                        try {
+                            fileSystem.close();
+                        }catch(IOException ex) {
+                            LOGGER.warn("Failed to close the modpack zip", ex);
+                        }
+                    }
+                    this.installer.save();
+                    this.pool.shutdown();
+                });
+    }
+}
@@ -1,20 +1,33 @@
 package bricktricker.servercursemanager.client;
 
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLParameters;
@@ -24,14 +37,24 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import bricktricker.servercursemanager.CertificateBuilder;
+import bricktricker.servercursemanager.Utils;
+import bricktricker.servercursemanager.client.ConnectionRace.Endpoint;
+import bricktricker.servercursemanager.jfr.DnsLookupEvent;
+import bricktricker.servercursemanager.jfr.ProfileKeyEvent;
 import bricktricker.servercursemanager.networking.PacketFilter;
+import bricktricker.servercursemanager.networking.TlsProvider;
+import com.google.gson.JsonObject;
 import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
 import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager;
 import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager.ProfileKeyPair;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
@@ -40,104 +63,364 @@ import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
 
 public class SimpleClient {
 
 	private static final Logger LOGGER = LogManager.getLogger();
+	// How often the client connects again, if the server is busy
+	private static final int MAX_RETRIES = 3;
+	private static final int MAX_RETRY_WAIT_SECONDS = 60;
+	// The connection is closed, if the server sends nothing for this long while the client is not queued
+	private static final int READ_IDLE_SECONDS = 60;
+	// Suffix of downloaded files, that are used on the next launch
+	static final String STAGED_SUFFIX = ".staged";
+	// The address that answered on the last launch
+	private static final String ENDPOINT_FILE = "endpoint.json";
+	
 	private final ClientSideHandler clientSideHandler;
 	private final CompletableFuture<Boolean> downloadJob;
+	// true, if the game is already running and the download must not disturb it
+	private final boolean background;
+	// Once the startup deadline passed, the cached files are in use and downloads are staged for the next launch
+	private final Object stagingLock = new Object();
+	private boolean staging;
+	private boolean staged = false;
+	// the server that answered, used as mod mirror
+	private volatile Endpoint mirrorEndpoint;
+	private volatile SslContext mirrorSslContext;
 
-	public SimpleClient(final ClientSideHandler clientSideHandler, byte[] currentModpackHash) {
-		this.clientSideHandler = clientSideHandler;
-		downloadJob = CompletableFuture.supplyAsync(() -> this.downloadModpack(clientSideHandler.getRemoteServer(), currentModpackHash));
+	public SimpleClient(final ClientSideHandler clientSideHandler, byte[] currentModpackHash, Map<String, byte[]> clientPackHashes) {
+		this(clientSideHandler, currentModpackHash, clientPackHashes, false);
 	}
 
-	private boolean downloadModpack(String server, byte[] currentModpackHash) {
-		LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Connecting to server at " + server);
+	/**
+	 * @param background true, if the game is already running. All downloads are staged for the next launch,
+	 * and the download runs on a low priority thread with a limited bandwidth.
+	 */
+	public SimpleClient(final ClientSideHandler clientSideHandler, byte[] currentModpackHash, Map<String, byte[]> clientPackHashes, boolean background) {
+		this.clientSideHandler = clientSideHandler;
+		this.background = background;
+		this.staging = background;
+		downloadJob = CompletableFuture.supplyAsync(() -> this.downloadModpack(clientSideHandler.getRemoteServer(), currentModpackHash, clientPackHashes));
+	}
 
-		// URI.create needs a scheme
-		if(!server.contains("//")) {
-			server = "scm://" + server;
-		}
+	private boolean downloadModpack(String server, byte[] currentModpackHash, Map<String, byte[]> clientPackHashes) {
+		progressMessage("Connecting to server at " + server);
 
-		final URI uri = URI.create(server);
-		final InetAddress inetAddress;
-		try {
-			inetAddress = InetAddress.getByName(uri.getHost());
-		}catch(UnknownHostException e) {
-			throw new UncheckedIOException(e);
+		List<String> servers = new ArrayList<>();
+		servers.add(server);
+		servers.addAll(clientSideHandler.getMirrors());
+		final List<Endpoint> endpoints = resolveEndpoints(servers, loadLastEndpoint());
+		if(endpoints.isEmpty()) {
+			throw new UncheckedIOException(new UnknownHostException("Could not resolve " + servers));
 		}
-		final int inetPort = uri.getPort() > 0 ? uri.getPort() : 4148;
 
 		final Path modpack = clientSideHandler.getServerpackFolder().resolve("modpack.zip");
-		ClientChannel requestHandler = new ClientChannel(currentModpackHash, modpack);
 		
+		ProfileKeyEvent keyEvent = new ProfileKeyEvent();
+		keyEvent.begin();
 		var clientKeypair = ProfileKeyPairBasedSecurityManager.getProfileKeyPair();
+		keyEvent.commit();
+		if(clientKeypair == null) {
+			// The server authenticates the player with the profile key pair
+			LOGGER.error("No profile key pair available, can't authenticate at the server");
+			progressMessage("No profile key pair available, can't download the modpack");
+			return false;
+		}
 		
 		var clientCert = mojangToX509(clientKeypair, ProfileKeyPairBasedSecurityManager.getInstance().getPlayerUUID());
+		
+		final SslContext sslContext;
+		try {
+			sslContext = TlsProvider.configure(SslContextBuilder.forClient(), TlsProvider.select(clientSideHandler.useOpenSsl()))
+					.keyManager(clientKeypair.privateKey(), clientCert)
+					.trustManager(clientSideHandler.requireValidCert() ? null : InsecureTrustManagerFactory.INSTANCE)
+					.clientAuth(ClientAuth.REQUIRE)
+					.protocols("TLSv1.3")
+					.build();
+		}catch(SSLException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		final EventLoopGroup group = this.background
+				? new NioEventLoopGroup(1, new DefaultThreadFactory("ServerCurseManager-Update", true, Thread.MIN_PRIORITY))
+				: new NioEventLoopGroup(1);
+		// the progress of the pack transfer is not shown while the game is running
+		final DownloadProgress progress = this.background ? null : new DownloadProgress("modpack");
+		ClientChannel requestHandler;
+		try {
+			int retries = 0;
+			while(true) {
+				requestHandler = new ClientChannel(currentModpackHash, modpack, clientPackHashes, clientSideHandler::getClientPackFile, this::commitDownload, progress, this::progressMessage);
+				connect(group, endpoints, sslContext, requestHandler, progress);
+				// The server is busy, try again after the time the server told us
+				if(requestHandler.getRetryAfter() <= 0 || retries++ >= MAX_RETRIES) {
+					break;
+				}
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(Math.min(requestHandler.getRetryAfter(), MAX_RETRY_WAIT_SECONDS)));
+				}catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}finally {
+			group.shutdownGracefully();
+		}
+
+		if(!requestHandler.wasSuccessful()) {
+			if(this.background) {
+				// the game keeps running with the current modpack, the next check tries again
+				LOGGER.debug("Failed to check for a modpack update at {}", server);
+				return false;
+			}
+			LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Failed to complete download at " + server);
+			LOGGER.error("Failed to receive successful data connection from server.");
+			return false;
+		}
+		LOGGER.debug("Successfully downloaded pack from server");
+		progressMessage("Downloaded modpack.zip from server");
+		return true;
+	}
+
+	// The launch screen is gone while the game is running, background downloads only log
+	private void progressMessage(String message) {
+		if(!this.background) {
+			LaunchEnvironmentHandler.INSTANCE.addProgressMessage(message);
+		}
+	}
+
+	/**
+	 * @return A client, that downloads mods from the server that send the modpack, or null if no server answered
+	 */
+	MirrorClient createMirror() {
+		Endpoint endpoint = this.mirrorEndpoint;
+		if(endpoint == null) {
+			return null;
+		}
+		return new MirrorClient(endpoint, e -> newBootstrap(this.mirrorSslContext, e));
+	}
+
+	// Connects to the first endpoint that answers and waits until the connection is closed
+	private void connect(EventLoopGroup group, List<Endpoint> endpoints, SslContext sslContext, ClientChannel requestHandler, DownloadProgress progress) {
+		ConnectionRace race = new ConnectionRace(group.next(), endpoints, endpoint -> newBootstrap(sslContext, endpoint));
+
+		Future<Channel> winner = race.start().awaitUninterruptibly();
+		if(!winner.isSuccess()) {
+			LOGGER.debug("Error occured during connection", winner.cause());
+			return;
+		}
+		Endpoint endpoint = race.getWinner();
+		LOGGER.debug("Connected to {} ({})", endpoint.host(), endpoint.address());
+		progressMessage("Connected to server at " + endpoint.host());
+		saveLastEndpoint(endpoint);
+		this.mirrorEndpoint = endpoint;
+		this.mirrorSslContext = sslContext;
 
-		final ChannelFuture remoteConnect = new Bootstrap()
-		        .group(new NioEventLoopGroup(1))
+		// The request is send once the handler is added
+		Channel channel = winner.getNow();
+		if(progress != null) {
+			// counts the received bytes, the size of each packet is set by the request handler
+			channel.pipeline().addLast("progress", new ChannelInboundHandlerAdapter() {
+
+				@Override
+				public void channelRead(ChannelHandlerContext ctx, Object msg) {
+					int bytes = msg instanceof ByteBuf buf ? buf.readableBytes() : 0;
+					ctx.fireChannelRead(msg);
+					progress.add(bytes);
+				}
+			});
+		}
+		channel.pipeline().addLast("filter", new PacketFilter(Integer.MAX_VALUE));
+		channel.pipeline().addLast("requestHandler", requestHandler);
+		// Wait for channels to close
+		channel.closeFuture().syncUninterruptibly();
+	}
+
+	// Creates a bootstrap with the TLS handler for the endpoint, the packet handlers are added once the handshake is done
+	private Bootstrap newBootstrap(SslContext sslContext, Endpoint endpoint) {
+		return new Bootstrap()
 		        .channel(NioSocketChannel.class)
-		        .remoteAddress(inetAddress, inetPort)
 				.option(ChannelOption.SO_KEEPALIVE, true)
 				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
 				.handler(new ChannelInitializer<SocketChannel>() {
 
 					@Override
 					protected void initChannel(final SocketChannel ch) {
-					    try {
-                            SslContext sslContext = SslContextBuilder.forClient()
-                                    .keyManager(clientKeypair.privateKey(), clientCert)
-                                    .trustManager(clientSideHandler.requireValidCert() ? null : InsecureTrustManagerFactory.INSTANCE)
-                                    .clientAuth(ClientAuth.REQUIRE)
-                                    .protocols("TLSv1.3")
-                                    .build();
-                            
-                            final SslHandler sslHandler = sslContext.newHandler(ch.alloc(), uri.getHost(), inetPort);
-                            final SSLParameters sslParameters = sslHandler.engine().getSSLParameters();
-                            sslParameters.setServerNames(null);
-                            if(clientSideHandler.requireValidCert()) {
-                                sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
-                                LOGGER.debug("Enabling certificate validation");
-                            }
-                            sslHandler.engine().setSSLParameters(sslParameters);
-                            ch.pipeline().addLast("ssl", sslHandler);
-                        } catch (SSLException e) {
-                            throw new UncheckedIOException(e);
+                        final SslHandler sslHandler = sslContext.newHandler(ch.alloc(), endpoint.host(), endpoint.address().getPort());
+                        final SSLParameters sslParameters = sslHandler.engine().getSSLParameters();
+                        sslParameters.setServerNames(null);
+                        if(clientSideHandler.requireValidCert()) {
+                            sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                        }
+                        sslHandler.engine().setSSLParameters(sslParameters);
+                        ch.pipeline().addLast("idle", new IdleStateHandler(READ_IDLE_SECONDS, 0, 0));
+                        long backgroundBandwidth = clientSideHandler.getBackgroundBandwidth();
+                        if(background && backgroundBandwidth > 0) {
+                            ch.pipeline().addLast("traffic", new ChannelTrafficShapingHandler(0, backgroundBandwidth));
                         }
-					    ch.pipeline().addLast("filter", new PacketFilter(Integer.MAX_VALUE));
-						ch.pipeline().addLast("requestHandler", requestHandler);
+                        ch.pipeline().addLast("ssl", sslHandler);
 					}
-				})
-				.connect();
-
-		remoteConnect.awaitUninterruptibly();
-		if(remoteConnect.isSuccess()) {
-			final String hostName = ((InetSocketAddress) remoteConnect.channel().remoteAddress()).getHostName();
-			LOGGER.debug("Connected to {}", hostName);
-			LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Connected to server at " + hostName);
-		}else {
-			LOGGER.debug("Error occured during connection", remoteConnect.cause());
-			remoteConnect.channel().eventLoop().shutdownGracefully();
+				});
+	}
+
+	/**
+	 * Resolves all addresses of the servers. The addresses of each server alternate between IPv6 and IPv4, starting with the
+	 * family the system prefers, so a broken address family only delays the connection by a short moment.
+	 *
+	 * @param preferred The address that answered first on the last launch, it is tried first. Can be null
+	 */
+	private static List<Endpoint> resolveEndpoints(List<String> servers, InetSocketAddress preferred) {
+		List<Endpoint> endpoints = new ArrayList<>();
+		for(String server : servers) {
+			// URI.create needs a scheme
+			if(!server.contains("//")) {
+				server = "scm://" + server;
+			}
+			final URI uri = URI.create(server);
+			final int port = uri.getPort() > 0 ? uri.getPort() : 4148;
+
+			DnsLookupEvent dnsEvent = new DnsLookupEvent();
+			dnsEvent.begin();
+			InetAddress[] addresses;
+			try {
+				addresses = InetAddress.getAllByName(uri.getHost());
+			}catch(UnknownHostException e) {
+				LOGGER.warn("Could not resolve {}", uri.getHost(), e);
+				continue;
+			}
+			if(dnsEvent.shouldCommit()) {
+				dnsEvent.host = uri.getHost();
+				dnsEvent.address = Arrays.stream(addresses).map(InetAddress::getHostAddress).collect(Collectors.joining(","));
+				dnsEvent.commit();
+			}
+
+			List<InetAddress> first = new ArrayList<>();
+			List<InetAddress> second = new ArrayList<>();
+			for(InetAddress address : addresses) {
+				(address.getClass() == addresses[0].getClass() ? first : second).add(address);
+			}
+			for(int i = 0; i < Math.max(first.size(), second.size()); i++) {
+				if(i < first.size()) {
+					endpoints.add(new Endpoint(uri.getHost(), new InetSocketAddress(first.get(i), port)));
+				}
+				if(i < second.size()) {
+					endpoints.add(new Endpoint(uri.getHost(), new InetSocketAddress(second.get(i), port)));
+				}
+			}
 		}
-		// Wait for channels to close
-		remoteConnect.channel().closeFuture().syncUninterruptibly();
-		if(!requestHandler.wasSuccessful()) {
-			LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Failed to complete download at " + server);
-			LOGGER.error("Failed to receive successful data connection from server.");
-			return false;
+
+		if(preferred != null) {
+			for(int i = 0; i < endpoints.size(); i++) {
+				if(endpoints.get(i).address().equals(preferred)) {
+					endpoints.add(0, endpoints.remove(i));
+					break;
+				}
+			}
+		}
+		return endpoints;
+	}
+
+	private InetSocketAddress loadLastEndpoint() {
+		Path endpointFile = clientSideHandler.getServerpackFolder().resolve(ENDPOINT_FILE);
+		if(!Files.isRegularFile(endpointFile)) {
+			return null;
+		}
+		try {
+			JsonObject endpoint = Utils.loadJson(endpointFile).getAsJsonObject();
+			InetAddress address = InetAddress.getByName(endpoint.getAsJsonPrimitive("address").getAsString());
+			return new InetSocketAddress(address, endpoint.getAsJsonPrimitive("port").getAsInt());
+		}catch(IOException | RuntimeException e) {
+			LOGGER.debug("Failed to load the last server address", e);
+			return null;
+		}
+	}
+
+	private void saveLastEndpoint(Endpoint endpoint) {
+		JsonObject endpointJson = new JsonObject();
+		endpointJson.addProperty("host", endpoint.host());
+		endpointJson.addProperty("address", endpoint.address().getAddress().getHostAddress());
+		endpointJson.addProperty("port", endpoint.address().getPort());
+		try {
+			Utils.saveJson(endpointJson, clientSideHandler.getServerpackFolder().resolve(ENDPOINT_FILE));
+		}catch(RuntimeException e) {
+			LOGGER.debug("Failed to save the server address", e);
 		}
-		LOGGER.debug("Successfully downloaded pack from server");
-		LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Downloaded modpack.zip from server");
-		return true;
 	}
 
-	boolean waitForResult() throws ExecutionException {
+	/**
+	 * Waits for the download, but at most until the deadline passed. A download that finishes later is staged for the next launch.
+	 *
+	 * @param deadlineSeconds The maximum time to wait, 0 to wait until the download is done
+	 * @return true, if the download was successful before the deadline
+	 */
+	boolean waitForResult(int deadlineSeconds) throws ExecutionException {
 		try {
-			return downloadJob.get();
+			if(deadlineSeconds <= 0) {
+				return downloadJob.get();
+			}
+			return downloadJob.get(deadlineSeconds, TimeUnit.SECONDS);
 		}catch(InterruptedException e) {
 			return false;
+		}catch(TimeoutException e) {
+			synchronized(this.stagingLock) {
+				this.staging = true;
+			}
+			LOGGER.warn("No answer from the server within {} seconds, using the cached modpack. A newer modpack will be used on the next launch", deadlineSeconds);
+			LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Server did not answer in time, using the cached modpack");
+			return false;
+		}
+	}
+
+	/**
+	 * @return true, if a download was staged for the next launch
+	 */
+	boolean hasStaged() {
+		synchronized(this.stagingLock) {
+			return this.staged;
+		}
+	}
+
+	// Moves a completely downloaded file to its target, or next to it if the cached files are already in use. Throws an UncheckedIOException if that fails
+	private void commitDownload(Path download, Path target) {
+		synchronized(this.stagingLock) {
+			Path destination = this.staging ? target.resolveSibling(target.getFileName() + STAGED_SUFFIX) : target;
+			try {
+				if(this.staging && !isValidPack(download)) {
+					Files.delete(download);
+					throw new IOException("Downloaded " + target.getFileName() + " is not a valid modpack");
+				}
+				moveFile(download, destination);
+				if(this.staging) {
+					this.staged = true;
+					LOGGER.info("Staged {} for the next launch", target.getFileName());
+				}
+			}catch(IOException e) {
+				// fails the download, so the cached packs are used
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// checks that the file is a readable zip with a manifest, before it replaces a working modpack on the next launch
+	private static boolean isValidPack(Path pack) {
+		try(FileSystem packSystem = FileSystems.newFileSystem(pack)) {
+			return Files.isRegularFile(packSystem.getPath("manifest.json"));
+		}catch(IOException | RuntimeException e) {
+			LOGGER.debug("Failed to open {}", pack, e);
+			return false;
+		}
+	}
+
+	static void moveFile(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
 		}
 	}
 	
@@ -0,0 +1,23 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.Connect")
+@Label("Server Connect")
+@Category({"ServerCurseManager", "Client"})
+@StackTrace(false)
+public class ConnectEvent extends Event {
+
+    @Label("Address")
+    public String address;
+
+    @Label("Port")
+    public int port;
+
+    @Label("Success")
+    public boolean success;
+}
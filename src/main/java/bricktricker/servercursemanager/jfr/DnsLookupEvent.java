@@ -0,0 +1,20 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.DnsLookup")
+@Label("Server DNS Lookup")
+@Category({"ServerCurseManager", "Client"})
+@StackTrace(false)
+public class DnsLookupEvent extends Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Address")
+    public String address;
+}
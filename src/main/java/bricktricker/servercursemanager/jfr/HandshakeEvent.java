@@ -0,0 +1,28 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.Handshake")
+@Label("TLS Handshake")
+@Category("ServerCurseManager")
+@Description("The TLS handshake of a pack connection, on the server it includes the Mojang key and whitelist verification")
+@StackTrace(false)
+public class HandshakeEvent extends Event {
+
+    @Label("Side")
+    public String side;
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Cipher Suite")
+    public String cipherSuite;
+
+    @Label("Success")
+    public boolean success;
+}
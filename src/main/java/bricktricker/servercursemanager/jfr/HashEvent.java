@@ -0,0 +1,22 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.Hash")
+@Label("File Hash")
+@Category("ServerCurseManager")
+@StackTrace(false)
+public class HashEvent extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
@@ -0,0 +1,28 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.InstallFile")
+@Label("Install File")
+@Category({"ServerCurseManager", "Client"})
+@StackTrace(false)
+public class InstallFileEvent extends Event {
+
+    @Label("Kind")
+    public String kind;
+
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Copied")
+    public boolean copied;
+}
@@ -0,0 +1,42 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.ModDownload")
+@Label("Mod Download")
+@Category("ServerCurseManager")
+@Description("Download and hash verification of a single mod file")
+@StackTrace(false)
+public class ModDownloadEvent extends Event {
+
+    @Label("Project ID")
+    @Description("The CurseForge project ID, 0 if unknown")
+    public int projectID;
+
+    @Label("File ID")
+    @Description("The CurseForge file ID, 0 if unknown")
+    public int fileID;
+
+    @Label("File")
+    public String file;
+
+    @Label("URL")
+    public String url;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Cached")
+    @Description("The file was already present and only its hash was checked")
+    public boolean cached;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,30 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.PackBuild")
+@Label("Pack Build")
+@Category({"ServerCurseManager", "Server"})
+@Description("Building the modpack zip and the client pack zips on server start")
+@StackTrace(false)
+public class PackBuildEvent extends Event {
+
+    @Label("Modpack Size")
+    @DataAmount
+    public long size;
+
+    @Label("Mods")
+    public int mods;
+
+    @Label("Additional Files")
+    public int additionalFiles;
+
+    @Label("Client Packs")
+    public int clientPacks;
+}
@@ -0,0 +1,34 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.PackTransfer")
+@Label("Pack Transfer")
+@Category("ServerCurseManager")
+@Description("Sending or receiving the modpack response, on the client it includes writing the zips to disk")
+@StackTrace(false)
+public class PackTransferEvent extends Event {
+
+    @Label("Side")
+    public String side;
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Updated Segments")
+    @Description("Number of packs that were outdated on the client and got send")
+    public int updatedSegments;
+
+    @Label("Success")
+    public boolean success;
+}
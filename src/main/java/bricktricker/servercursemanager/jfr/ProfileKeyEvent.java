@@ -0,0 +1,16 @@
+package bricktricker.servercursemanager.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("servercursemanager.ProfileKey")
+@Label("Profile Key Wait")
+@Category({"ServerCurseManager", "Client"})
+@Description("Time the download waited for the profile key pair of the player")
+@StackTrace(false)
+public class ProfileKeyEvent extends Event {
+}
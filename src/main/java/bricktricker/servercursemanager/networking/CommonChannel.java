@@ -14,13 +14,31 @@ public abstract class CommonChannel extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LogManager.getLogger();
 
     protected static ByteBuf writeHeader(ByteBufAllocator alloc, int contentLength, PacketType packetType) {
-        ByteBuf buf = alloc.buffer(HEADER.length + 4 + 1 + contentLength);
+        return writeHeader(alloc, contentLength, contentLength, packetType);
+    }
+    
+    /**
+     * @param bufferedLength The part of the content, that is written into the returned buffer. The rest is written separately, e.g. from a file
+     */
+    protected static ByteBuf writeHeader(ByteBufAllocator alloc, int contentLength, int bufferedLength, PacketType packetType) {
+        ByteBuf buf = alloc.buffer(HEADER.length + 4 + 1 + bufferedLength);
         buf.writeBytes(HEADER);
         buf.writeInt(contentLength + 1);
         buf.writeByte(packetType.ordinal());
         return buf;
     }
     
+    /**
+     * Prepends the packet header to the content, without copying the content
+     */
+    protected static ByteBuf writePacket(ByteBufAllocator alloc, ByteBuf content, PacketType packetType) {
+        ByteBuf header = alloc.buffer(HEADER.length + 4 + 1);
+        header.writeBytes(HEADER);
+        header.writeInt(content.readableBytes() + 1);
+        header.writeByte(packetType.ordinal());
+        return alloc.compositeBuffer(2).addComponents(true, header, content);
+    }
+    
     protected static byte[] readBuffer(ByteBuf buf, int maxLength) {
         int length = buf.readInt();
         if (length > maxLength) {
@@ -10,7 +10,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ReplayingDecoder;
 
 enum State {
-	READ_NOTHING, READ_HEADER
+	READ_NOTHING, READ_HEADER, READ_LENGTH
 }
 
 public class PacketFilter extends ReplayingDecoder<State> {
@@ -20,6 +20,14 @@ public class PacketFilter extends ReplayingDecoder<State> {
 	private static final byte[] HEADER = { 'S', 'C', 'M', '1' };
 
 	private final int maxPacketLength;
+	private int packetLength;
+
+	/**
+	 * Fired as user event, when the length of a packet was read, before its content was received
+	 *
+	 * @param length The length of the packet, including the packet type
+	 */
+	public record PacketStart(int length) {}
 
 	public PacketFilter(int maxPacketLength) {
 		super(State.READ_NOTHING);
@@ -28,8 +36,7 @@ public class PacketFilter extends ReplayingDecoder<State> {
 
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-		State state = state();
-		if(state == State.READ_NOTHING) {
+		if(state() == State.READ_NOTHING) {
 			for(int i = 0; i < HEADER.length; i++) {
 				if(HEADER[i] != in.readByte()) {
 					LOGGER.warn("Received packet with invalid header");
@@ -40,18 +47,24 @@ public class PacketFilter extends ReplayingDecoder<State> {
 			checkpoint(State.READ_HEADER);
 		}
 
-		int packetLength = in.readInt();
-		if(packetLength <= 0) {
-			checkpoint(State.READ_NOTHING);
-			LOGGER.warn("Received packet with a negative length {}", packetLength);
-			return;
-		}
-		if(packetLength > this.maxPacketLength) {
-			checkpoint(State.READ_NOTHING);
-			LOGGER.warn("Received packet that is to big, packet size: {} bytes", packetLength);
-			return;
+		if(state() == State.READ_HEADER) {
+			int packetLength = in.readInt();
+			if(packetLength <= 0) {
+				checkpoint(State.READ_NOTHING);
+				LOGGER.warn("Received packet with a negative length {}", packetLength);
+				return;
+			}
+			if(packetLength > this.maxPacketLength) {
+				checkpoint(State.READ_NOTHING);
+				LOGGER.warn("Received packet that is to big, packet size: {} bytes", packetLength);
+				return;
+			}
+			this.packetLength = packetLength;
+			checkpoint(State.READ_LENGTH);
+			ctx.fireUserEventTriggered(new PacketStart(packetLength));
 		}
-		ByteBuf packet = in.readBytes(packetLength);
+
+		ByteBuf packet = in.readBytes(this.packetLength);
 		out.add(packet);
 		checkpoint(State.READ_NOTHING);
 	}
@@ -1,7 +1,13 @@
 package bricktricker.servercursemanager.networking;
 
 public enum PacketType {
+    // The ordinal is send as packet type, new types are only appended
     MODPACK_REQUEST,
     MODPACK_RESPONSE,
-    ERROR
+    ERROR,
+    SEGMENTED_MODPACK_REQUEST,
+    SEGMENTED_MODPACK_RESPONSE,
+    QUEUE_STATUS,
+    MOD_REQUEST,
+    MOD_RESPONSE
 }
@@ -0,0 +1,62 @@
+package bricktricker.servercursemanager.networking;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslContextOption;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+
+/**
+ * Selects the TLS implementation used by the server and the client. OpenSSL (or BoringSSL) is only used if
+ * it is enabled in the config and netty-tcnative could be loaded, otherwise the JDK implementation is used.
+ */
+public final class TlsProvider {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private TlsProvider() {
+    }
+
+    /**
+     * @param useOpenSsl true, if OpenSSL should be used when available
+     * @return The provider to use for the SslContext
+     */
+    public static SslProvider select(boolean useOpenSsl) {
+        if(!useOpenSsl) {
+            return SslProvider.JDK;
+        }
+
+        try {
+            if(!OpenSsl.isAvailable()) {
+                // netty-tcnative is not shipped with minecraft, it is only present if the user added it
+                LOGGER.warn("OpenSSL is not available, falling back to the JDK TLS implementation", OpenSsl.unavailabilityCause());
+                return SslProvider.JDK;
+            }
+        }catch(LinkageError e) {
+            LOGGER.warn("OpenSSL could not be loaded, falling back to the JDK TLS implementation", e);
+            return SslProvider.JDK;
+        }
+
+        if(!SslProvider.isTlsv13Supported(SslProvider.OPENSSL)) {
+            LOGGER.warn("{} does not support TLSv1.3, falling back to the JDK TLS implementation", OpenSsl.versionString());
+            return SslProvider.JDK;
+        }
+
+        LOGGER.debug("Using {} for TLS", OpenSsl.versionString());
+        return SslProvider.OPENSSL;
+    }
+
+    /**
+     * Sets the provider on the builder. With OpenSSL, the certificate verification runs as delegated task, like with
+     * the JDK implementation, so it runs on the executor of the SslHandler instead of blocking the event loop.
+     */
+    public static SslContextBuilder configure(SslContextBuilder builder, SslProvider provider) {
+        builder.sslProvider(provider);
+        if(provider == SslProvider.OPENSSL) {
+            builder.option(OpenSslContextOption.USE_TASKS, true);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,102 @@
+package bricktricker.servercursemanager.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cpw.mods.forge.serverpacklocator.ModAccessor;
+import io.netty.channel.Channel;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
+
+/**
+ * Shapes the bandwidth of the pack transfers, so a burst of downloads does not use up the uplink of the Minecraft server.
+ * The global limit is shared by all transfers and can be lowered for every player that is online.
+ * Every connection gets its own limit and traffic counter.
+ */
+public class BandwidthShaper {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final long UPDATE_INTERVAL_SECONDS = 5;
+
+    // all limits in bytes per second, 0 means unlimited
+    private final long globalLimit;
+    private final long clientLimit;
+    private final long reservedPerPlayer;
+
+    // null, if there is no global limit
+    private final GlobalTrafficShapingHandler globalHandler;
+    private final Map<Channel, ChannelTrafficShapingHandler> connections = new ConcurrentHashMap<>();
+
+    /**
+     * @param executor The executor for the traffic counters
+     * @param globalLimit The limit for all transfers together
+     * @param clientLimit The limit of a single transfer
+     * @param reservedPerPlayer The bandwidth that is subtracted from the global limit for every online player
+     */
+    public BandwidthShaper(ScheduledExecutorService executor, long globalLimit, long clientLimit, long reservedPerPlayer) {
+        this.globalLimit = globalLimit;
+        this.clientLimit = clientLimit;
+        this.reservedPerPlayer = reservedPerPlayer;
+        this.globalHandler = globalLimit > 0 ? new GlobalTrafficShapingHandler(executor, globalLimit, 0, CHECK_INTERVAL_MILLIS) : null;
+
+        executor.scheduleAtFixedRate(this::update, UPDATE_INTERVAL_SECONDS, UPDATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds the traffic shaping handlers to the pipeline of a new connection, they need to be in front of the SslHandler
+     */
+    public void initChannel(Channel ch) {
+        if(this.globalHandler != null) {
+            ch.pipeline().addLast("globalTraffic", this.globalHandler);
+        }
+        ChannelTrafficShapingHandler handler = new ChannelTrafficShapingHandler(this.clientLimit, 0, CHECK_INTERVAL_MILLIS);
+        ch.pipeline().addLast("traffic", handler);
+
+        this.connections.put(ch, handler);
+        ch.closeFuture().addListener(f -> this.connections.remove(ch));
+    }
+
+    /**
+     * @return The number of bytes per second send to all clients together in the last interval
+     */
+    public long getThroughput() {
+        long throughput = 0;
+        for(ChannelTrafficShapingHandler handler : this.connections.values()) {
+            throughput += handler.trafficCounter().lastWriteThroughput();
+        }
+        return throughput;
+    }
+
+    private void update() {
+        if(this.globalHandler != null && this.reservedPerPlayer > 0) {
+            int players = ModAccessor.getPlayerCount();
+            if(players >= 0) {
+                // Always leave a tenth of the limit for the downloads
+                long limit = Math.max(this.globalLimit - players * this.reservedPerPlayer, this.globalLimit / 10);
+                if(limit != this.globalHandler.getWriteLimit()) {
+                    LOGGER.debug("{} players online, limiting pack transfers to {} KiB/s", players, limit / 1024);
+                    this.globalHandler.setWriteLimit(limit);
+                }
+            }
+        }
+
+        if(LOGGER.isDebugEnabled()) {
+            this.connections.forEach((ch, handler) -> {
+                TrafficCounter counter = handler.trafficCounter();
+                if(counter.lastWriteThroughput() == 0) {
+                    // handshake or waiting in the queue
+                    return;
+                }
+                LOGGER.debug("Transfer to {}: {} KiB/s, {} KiB send", ch.remoteAddress(), counter.lastWriteThroughput() / 1024, counter.cumulativeWrittenBytes() / 1024);
+            });
+        }
+    }
+}
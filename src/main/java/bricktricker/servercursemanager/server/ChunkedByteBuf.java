@@ -0,0 +1,59 @@
+package bricktricker.servercursemanager.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * Splits a buffer into slices for the {@link io.netty.handler.stream.ChunkedWriteHandler}, so the next slice
+ * is only encrypted and written once the channel is writable again. The slices share the memory of the buffer.
+ */
+class ChunkedByteBuf implements ChunkedInput<ByteBuf> {
+
+    private final ByteBuf buf;
+    private final int chunkSize;
+    private final long length;
+
+    ChunkedByteBuf(ByteBuf buf, int chunkSize) {
+        this.buf = buf;
+        this.chunkSize = chunkSize;
+        this.length = buf.readableBytes();
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return !this.buf.isReadable();
+    }
+
+    @Override
+    public void close() {
+        if(this.buf.refCnt() > 0) {
+            this.buf.release();
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) {
+        if(!this.buf.isReadable()) {
+            return null;
+        }
+        return this.buf.readRetainedSlice(Math.min(this.chunkSize, this.buf.readableBytes()));
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public long progress() {
+        return this.length - this.buf.readableBytes();
+    }
+}
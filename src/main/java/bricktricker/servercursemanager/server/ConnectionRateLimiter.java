@@ -0,0 +1,170 @@
+package bricktricker.servercursemanager.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
+import io.netty.handler.ipfilter.IpFilterRuleType;
+import io.netty.handler.ipfilter.IpSubnetFilterRule;
+
+/**
+ * Limits how fast a single address and a subnet can open new connections. Every connection costs a TLS handshake
+ * and a verification of the Mojang key, so connections over the limit are closed before any of that happens.
+ * Every address and subnet has a token bucket, that refills with the configured rate per minute.
+ */
+@Sharable
+public class ConnectionRateLimiter extends AbstractRemoteAddressFilter<InetSocketAddress> {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int IPV4_SUBNET_BITS = 24;
+    private static final int IPV6_SUBNET_BITS = 64;
+
+    private final int addressRate;
+    private final int subnetRate;
+    private final List<IpSubnetFilterRule> allowlist;
+
+    private final Map<InetAddress, TokenBucket> addressBuckets = new ConcurrentHashMap<>();
+    private final Map<InetAddress, TokenBucket> subnetBuckets = new ConcurrentHashMap<>();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param executor The executor that removes unused buckets
+     * @param addressRate The number of connections per minute of a single address, 0 if unlimited
+     * @param subnetRate The number of connections per minute of a subnet (/24 for IPv4, /64 for IPv6), 0 if unlimited
+     * @param allowlist Addresses or subnets in CIDR notation, that are not limited
+     */
+    public ConnectionRateLimiter(ScheduledExecutorService executor, int addressRate, int subnetRate, List<String> allowlist) {
+        this.addressRate = addressRate;
+        this.subnetRate = subnetRate;
+        this.allowlist = new ArrayList<>(allowlist.size());
+        for(String entry : allowlist) {
+            try {
+                this.allowlist.add(parseRule(entry));
+            }catch(IllegalArgumentException e) {
+                LOGGER.error("Invalid entry {} in the connection allowlist", entry, e);
+            }
+        }
+
+        executor.scheduleAtFixedRate(this::removeFullBuckets, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+        InetAddress address = remoteAddress.getAddress();
+        if(isAllowlisted(remoteAddress)) {
+            this.accepted.increment();
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if(this.addressRate > 0 && !this.addressBuckets.computeIfAbsent(address, a -> new TokenBucket(this.addressRate, now)).tryAcquire(now)) {
+            LOGGER.debug("Rejected connection from {}, too many connections from this address", address);
+            this.rejected.increment();
+            return false;
+        }
+        if(this.subnetRate > 0 && !this.subnetBuckets.computeIfAbsent(subnet(address), a -> new TokenBucket(this.subnetRate, now)).tryAcquire(now)) {
+            LOGGER.debug("Rejected connection from {}, too many connections from this subnet", address);
+            this.rejected.increment();
+            return false;
+        }
+        this.accepted.increment();
+        return true;
+    }
+
+    public long getAccepted() {
+        return this.accepted.sum();
+    }
+
+    public long getRejected() {
+        return this.rejected.sum();
+    }
+
+    private boolean isAllowlisted(InetSocketAddress remoteAddress) {
+        for(IpSubnetFilterRule rule : this.allowlist) {
+            if(rule.matches(remoteAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Full buckets behave like new buckets, so they don't need to be kept
+    private void removeFullBuckets() {
+        long now = System.nanoTime();
+        this.addressBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        this.subnetBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    private static InetAddress subnet(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int bits = bytes.length == 4 ? IPV4_SUBNET_BITS : IPV6_SUBNET_BITS;
+        for(int i = bits / 8; i < bytes.length; i++) {
+            bytes[i] = 0;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        }catch(UnknownHostException e) {
+            // can't happen, the address has a valid length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // parses an address with an optional prefix length, e.g. 192.168.0.0/16
+    private static IpSubnetFilterRule parseRule(String entry) {
+        int slash = entry.indexOf('/');
+        if(slash < 0) {
+            return new IpSubnetFilterRule(entry, entry.contains(":") ? 128 : 32, IpFilterRuleType.ACCEPT);
+        }
+        return new IpSubnetFilterRule(entry.substring(0, slash), Integer.parseInt(entry.substring(slash + 1)), IpFilterRuleType.ACCEPT);
+    }
+
+    private static final class TokenBucket {
+        // the bucket allows a burst of one minute worth of connections
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(int ratePerMinute, long now) {
+            this.capacity = ratePerMinute;
+            this.tokensPerNano = ratePerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+            this.tokens = this.capacity;
+            this.lastRefill = now;
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            refill(now);
+            if(this.tokens < 1) {
+                return false;
+            }
+            this.tokens--;
+            return true;
+        }
+
+        private synchronized boolean isFull(long now) {
+            refill(now);
+            return this.tokens >= this.capacity;
+        }
+
+        private void refill(long now) {
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+            this.lastRefill = now;
+        }
+    }
+}
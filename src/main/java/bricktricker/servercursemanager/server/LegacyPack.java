@@ -0,0 +1,112 @@
+package bricktricker.servercursemanager.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import bricktricker.servercursemanager.Utils;
+
+/**
+ * The modpack in the format of clients, that request it with a {@link bricktricker.servercursemanager.networking.PacketType#MODPACK_REQUEST}.
+ * These clients don't know about segments, so the base pack and all client packs are merged into one zip and the manifest
+ * lists the mods of every client pack. The zip is only build once the first of these clients connects.
+ */
+final class LegacyPack {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String MANIFEST = "manifest.json";
+
+    private final PackSegment basePack;
+    private final Map<String, PackSegment> clientPacks;
+    // guarded by this
+    private CompletableFuture<PackSegment> pack;
+
+    LegacyPack(PackSegment basePack, Map<String, PackSegment> clientPacks) {
+        this.basePack = basePack;
+        this.clientPacks = clientPacks;
+    }
+
+    /**
+     * @return The merged modpack, it is build on a background thread by the first call
+     */
+    synchronized CompletableFuture<PackSegment> get() {
+        if(this.pack == null) {
+            this.pack = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return build();
+                }catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return this.pack;
+    }
+
+    private PackSegment build() throws IOException {
+        long size = this.basePack.data().length;
+        for(PackSegment clientPack : this.clientPacks.values()) {
+            size += clientPack.data().length;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE - 8));
+        try(ZipOutputStream zos = new ZipOutputStream(baos)) {
+            Set<String> written = new HashSet<>();
+            JsonObject manifest = copyEntries(this.basePack, zos, written);
+            Map<String, JsonArray> clientPackMods = new HashMap<>();
+            for(PackSegment clientPack : this.clientPacks.values()) {
+                JsonObject clientPackManifest = copyEntries(clientPack, zos, written);
+                clientPackMods.put(clientPack.name(), clientPackManifest.getAsJsonArray("mods"));
+            }
+
+            // The base manifest only announces the client packs, add their mods
+            for(JsonElement packE : manifest.getAsJsonArray("clientPacks")) {
+                JsonObject clientPack = packE.getAsJsonObject();
+                JsonArray mods = clientPackMods.get(clientPack.getAsJsonPrimitive("name").getAsString());
+                clientPack.add("mods", mods != null ? mods : new JsonArray());
+            }
+            zos.putNextEntry(Utils.getStableEntry(MANIFEST));
+            Utils.saveJson(manifest, zos);
+            zos.closeEntry();
+        }
+        PackSegment pack = PackSegment.of(null, baos.toByteArray());
+        LOGGER.debug("Generated modpack for old clients {} bytes big", pack.data().length);
+        return pack;
+    }
+
+    // Copies all files of the segment into the zip and returns its manifest
+    private static JsonObject copyEntries(PackSegment segment, ZipOutputStream zos, Set<String> written) throws IOException {
+        JsonObject manifest = null;
+        try(ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(segment.data()))) {
+            ZipEntry entry;
+            while((entry = zis.getNextEntry()) != null) {
+                if(entry.getName().equals(MANIFEST)) {
+                    manifest = Utils.loadJson(new ByteArrayInputStream(zis.readAllBytes())).getAsJsonObject();
+                }else if(written.add(entry.getName())) {
+                    zos.putNextEntry(Utils.getStableEntry(entry.getName()));
+                    zis.transferTo(zos);
+                    zos.closeEntry();
+                }
+            }
+        }
+        if(manifest == null) {
+            throw new IOException("The pack " + segment.name() + " has no manifest");
+        }
+        return manifest;
+    }
+}
@@ -15,6 +15,7 @@ import javax.security.auth.x500.X500Principal;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import bricktricker.servercursemanager.server.metrics.PackServerMetrics;
 import cpw.mods.forge.serverpacklocator.ModAccessor;
 import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager;
 import cpw.mods.forge.serverpacklocator.secure.WhitelistVerificationHelper;
@@ -65,14 +66,27 @@ public class MojangCertTrustManager extends X509ExtendedTrustManager {
     }
     
     private void checkUser(X509Certificate[] chain, String authType) throws CertificateException {
-        if(authType != "RSA") {
-            throw new CertificateException("Only RSA authentication allowed");
+        long start = System.nanoTime();
+        try {
+            verifyUser(chain);
+        }catch(CertificateException | RuntimeException e) {
+            PackServerMetrics.getInstance().verificationFailures.increment();
+            throw e;
+        }finally {
+            PackServerMetrics.getInstance().verificationTime.observeNanos(System.nanoTime() - start);
         }
-        
+    }
+    
+    private void verifyUser(X509Certificate[] chain) throws CertificateException {
         if(chain == null || chain.length != 1) {
             throw new CertificateException("Certificate chain of 1 is required");
         }
         X509Certificate cert = chain[0];
+        
+        // The authType depends on the TLS implementation, OpenSSL does not report the key type for TLSv1.3, so check the key itself
+        if(!"RSA".equals(cert.getPublicKey().getAlgorithm())) {
+            throw new CertificateException("Only RSA authentication allowed");
+        }
         cert.checkValidity(); // check its not expired
         
         if(cert.hasUnsupportedCriticalExtension()) {
@@ -84,7 +98,7 @@ public class MojangCertTrustManager extends X509ExtendedTrustManager {
         UUID playerUUID = UUID.fromString(playerUuidStr);
         Instant expireDate = cert.getNotAfter().toInstant();
         
-        if(cert.getSigAlgName() != "SHA256withRSA") {
+        if(!"SHA256withRSA".equalsIgnoreCase(cert.getSigAlgName())) {
             throw new CertificateException("Only SHA256withRSA as signature algorithm supported");
         }
         
@@ -119,7 +133,8 @@ public class MojangCertTrustManager extends X509ExtendedTrustManager {
             throw new CertificateException("whitelist not ready");
         }
         
-        LOGGER.info("Player {} requested the modpack", ModAccessor.resolveName(playerUUID));
+        // Resolving the name needs the server thread, don't wait for it
+        ModAccessor.resolveName(playerUUID).thenAccept(name -> LOGGER.info("Player {} requested the modpack", name));
     }
     
     // parses the comment extension, needs to be improved
@@ -0,0 +1,21 @@
+package bricktricker.servercursemanager.server;
+
+import java.io.ByteArrayInputStream;
+
+import bricktricker.servercursemanager.Utils;
+
+/**
+ * A part of the modpack that is send to the client. The base pack and every client pack are
+ * build into their own segment, so clients only download the client packs they enabled.
+ *
+ * @param name The name of the client pack, or null for the base pack
+ * @param data The zip file of this segment
+ * @param hash The SHA-1 hash of data
+ */
+public record PackSegment(String name, byte[] data, byte[] hash) {
+
+    public static PackSegment of(String name, byte[] data) {
+        return new PackSegment(name, data, Utils.computeSha1(new ByteArrayInputStream(data)));
+    }
+
+}
@@ -3,85 +3,108 @@ package bricktricker.servercursemanager.server;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.math.BigInteger;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.nio.file.Path;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPrivateKey;
-import java.time.LocalDateTime;
 import java.util.Collection;
 import java.util.Date;
-import java.util.TimeZone;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.SSLException;
-import javax.security.auth.x500.X500Principal;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import bricktricker.servercursemanager.CertificateBuilder;
 import bricktricker.servercursemanager.networking.PacketFilter;
+import bricktricker.servercursemanager.networking.TlsProvider;
+import bricktricker.servercursemanager.server.metrics.MetricsServer;
+import bricktricker.servercursemanager.server.metrics.PackServerMetrics;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.ssl.ClientAuth;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
 
 public class RequestServer {
 
 	private static final Logger LOGGER = LogManager.getLogger();
 
+	// The SSL handshake includes the Mojang key and whitelist verification, which may need to fetch the services keys first
+	private static final long HANDSHAKE_TIMEOUT_SECONDS = 30;
+	// Time a client has to send its request after connecting
+	private static final int REQUEST_TIMEOUT_SECONDS = 30;
+	// A transfer is aborted, if the client did not read anything for this long
+	private static final int WRITE_TIMEOUT_SECONDS = 60;
+	// Stop writing to slow clients, once this much encrypted data is waiting to be send
+	private static final WriteBufferWaterMark WRITE_WATER_MARK = new WriteBufferWaterMark(512 * 1024, 2 * 1024 * 1024);
+
 	private RequestServer() {
 	}
 
-	public static void run(ServerSideHandler handler, byte[] modpackData) {
-		EventLoopGroup masterGroup = new NioEventLoopGroup(1, (Runnable r) -> newDaemonThread("ServerCurseManager Master - ", r));
-		EventLoopGroup slaveGroup = new NioEventLoopGroup(1, (Runnable r) -> newDaemonThread("ServerCurseManager Slave - ", r));
+	/**
+	 * @param mirroredMods The remote mods, that clients can download from this server, by their SHA-1. Empty if the mirror is disabled
+	 */
+	public static void run(ServerSideHandler handler, PackSegment basePack, Map<String, PackSegment> clientPacks, Map<String, Path> mirroredMods) {
+		ServerTransport transport = ServerTransport.select(handler.useNativeTransport());
+		int workerThreads = handler.getWorkerThreads();
+		LOGGER.debug("Starting ServerCurseManager server with {} transport and {} worker threads", transport, workerThreads);
+		
+		// The master only accepts connections, the TLS handshakes and pack transfers are spread over the slaves
+		EventLoopGroup masterGroup = transport.newEventLoopGroup(1, (Runnable r) -> newDaemonThread("ServerCurseManager Master - ", r));
+		EventLoopGroup slaveGroup = transport.newEventLoopGroup(workerThreads, (Runnable r) -> newDaemonThread("ServerCurseManager Slave - ", r));
+		// The SSL engine verifies the client certificates and the whitelist in delegated tasks, run them outside of the event loop
+		ExecutorService verifyExecutor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), (Runnable r) -> newDaemonThread("ServerCurseManager Verify - ", r));
 		
-		// Generate self signed cert
+		// Use a self signed cert, if no certificate is configured
         var certPair = handler.getServerCerts();
+        SslProvider sslProvider = TlsProvider.select(handler.useOpenSsl());
+        ServerSslContext sslContext;
         if(certPair != null) {
-            checkCertificate(certPair.getLeft());
+            sslContext = new ServerSslContext(certPair, null, null, sslProvider);
+            masterGroup.scheduleAtFixedRate(sslContext::reloadIfChanged, 1, 1, TimeUnit.MINUTES);
+        }else {
+            ServerIdentity identity = ServerIdentity.loadOrCreate(handler.getServerpackFolder(), handler.getKeyType());
+            sslContext = new ServerSslContext(null, identity.privateKey(), identity.certificate(), sslProvider);
         }
-		
-		KeyPair serverKeypair = generateKeypair();
-        
-        LocalDateTime beginValid = LocalDateTime.now(TimeZone.getTimeZone("UTC").toZoneId());
-        LocalDateTime stopValid = beginValid.plusMonths(12);
-
-        X500Principal issuer = new X500Principal("CN=ServerCurseManager");
-        
-        X509Certificate serverCert = new CertificateBuilder()
-            .version(3)
-            .serialNumber(new BigInteger(64, new SecureRandom()))
-            .validity(beginValid, stopValid)
-            .issuer(issuer)
-            .subject(issuer)
-            .publicKey(serverKeypair.getPublic())
-            .basicConstrains(true, 0)
-            .build((RSAPrivateKey)serverKeypair.getPrivate(), CertificateBuilder.SIG_Sha256WithRSAEncryption);
+
+		TransferLimiter limiter = new TransferLimiter(handler.getMaxTransfers(), handler.getMaxQueue());
+		LOGGER.debug("Allowing {} concurrent transfers and {} queued clients", handler.getMaxTransfers(), handler.getMaxQueue());
+
+		ConnectionRateLimiter rateLimiter = new ConnectionRateLimiter(masterGroup, handler.getConnectionRate(), handler.getSubnetConnectionRate(), handler.getConnectionAllowlist());
+		PackServerMetrics metrics = PackServerMetrics.getInstance();
+		metrics.setConnectionCounters(rateLimiter::getAccepted, rateLimiter::getRejected);
+		metrics.setTransferGauges(limiter::getRunning, limiter::getQueued);
+		metrics.registerMBean();
+		if(handler.getMetricsPort() > 0) {
+			MetricsServer.run(masterGroup, transport.serverChannelClass(), handler.getMetricsPort());
+		}
+
+		BandwidthShaper shaper = new BandwidthShaper(masterGroup, handler.getBandwidthLimit(), handler.getClientBandwidthLimit(), handler.getPlayerBandwidth());
+		metrics.setTransferThroughput(shaper::getThroughput);
+
+		// Old clients get all client packs in one zip, it is only build if one of them connects
+		LegacyPack legacyPack = new LegacyPack(basePack, clientPacks);
 
 		int port = handler.getPort();
 		final ServerBootstrap bootstrap = new ServerBootstrap()
 			.group(masterGroup, slaveGroup)
-			.channel(NioServerSocketChannel.class)
+			.channel(transport.serverChannelClass())
 			.handler(new ChannelInitializer<ServerSocketChannel>() {
 				@Override
 				protected void initChannel(final ServerSocketChannel ch) {
@@ -97,30 +120,20 @@ public class RequestServer {
 			.childHandler(new ChannelInitializer<SocketChannel>() {
 				@Override
 				protected void initChannel(final SocketChannel ch) {
-				    try {
-				        SslContextBuilder sslBuilder;
-				        if(certPair == null) {
-				            sslBuilder = SslContextBuilder.forServer(serverKeypair.getPrivate(), serverCert);
-				        }else {
-				            sslBuilder = SslContextBuilder.forServer(certPair.getLeft(), certPair.getRight());
-				        }
-				        
-                        SslContext sslContext = sslBuilder
-                                .trustManager(new MojangCertTrustManager())
-                                .clientAuth(ClientAuth.REQUIRE)
-                                .protocols("TLSv1.3")
-                                .build();
-                        
-                        ch.pipeline().addLast("ssl", sslContext.newHandler(ch.alloc()));
-                    } catch (SSLException e) {
-                        throw new UncheckedIOException(e);
-                    }
-				    ch.pipeline().addLast("filter", new PacketFilter(2048));  // Max packet size is 2KiB
-					ch.pipeline().addLast("request", new ServerChannel(modpackData));
+				    SslHandler sslHandler = sslContext.get().newHandler(ch.alloc(), verifyExecutor);
+				    sslHandler.setHandshakeTimeout(HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				    ch.pipeline().addLast("rateLimit", rateLimiter);
+				    ch.pipeline().addLast("idle", new IdleStateHandler(true, REQUEST_TIMEOUT_SECONDS, WRITE_TIMEOUT_SECONDS, 0, TimeUnit.SECONDS));
+				    shaper.initChannel(ch);
+				    ch.pipeline().addLast("ssl", sslHandler);
+				    ch.pipeline().addLast("chunked", new ChunkedWriteHandler());
+				    ch.pipeline().addLast("filter", new PacketFilter(16384));  // Max packet size is 16KiB, the request contains the selected client packs
+					ch.pipeline().addLast("request", new ServerChannel(basePack, clientPacks, legacyPack, mirroredMods, limiter));
 				}
 			})
 			.option(ChannelOption.SO_BACKLOG, 128)
-			.childOption(ChannelOption.SO_KEEPALIVE, true);
+			.childOption(ChannelOption.SO_KEEPALIVE, true)
+			.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WRITE_WATER_MARK);
 		bootstrap.bind(port).syncUninterruptibly();
 	}
 
@@ -133,18 +146,7 @@ public class RequestServer {
 		return t;
 	}
 	
-	private static KeyPair generateKeypair() {
-	    KeyPairGenerator kpg;
-        try {
-            kpg = KeyPairGenerator.getInstance("RSA");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-        kpg.initialize(2048);
-        return kpg.generateKeyPair();
-	}
-	
-	private static void checkCertificate(File file) {
+	static void checkCertificate(File file) {
 	    try (FileInputStream fis = new FileInputStream(file)) {
 	        CertificateFactory cf = CertificateFactory.getInstance("X.509");
 	        Collection<? extends Certificate> certs =  cf.generateCertificates(fis);
@@ -1,31 +1,86 @@
 package bricktricker.servercursemanager.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import bricktricker.servercursemanager.Utils;
+import bricktricker.servercursemanager.jfr.HandshakeEvent;
+import bricktricker.servercursemanager.jfr.PackTransferEvent;
 import bricktricker.servercursemanager.networking.CommonChannel;
 import bricktricker.servercursemanager.networking.PacketType;
+import bricktricker.servercursemanager.server.metrics.PackServerMetrics;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 
 public class ServerChannel extends CommonChannel {
 
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private final byte[] modpackData;
-    private final byte[] modpackHash;
+    // The response is written in slices, so slow clients don't fill up the memory with encrypted data
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Clients must not request more mods at once, see MirrorClient
+    private static final int MAX_MOD_REQUESTS = 16;
 
-    public ServerChannel(byte[] modpackData) {
-        this.modpackData = modpackData;
-        this.modpackHash = Utils.computeSha1(new ByteArrayInputStream(modpackData));
+    private final PackSegment basePack;
+    private final Map<String, PackSegment> clientPacks;
+    private final LegacyPack legacyPack;
+    private final TransferLimiter limiter;
+    // the remote mods, that clients can download from this server, by their SHA-1. Empty if the mirror is disabled
+    private final Map<String, Path> mirroredMods;
+
+    // the transfer slot of the modpack or of the mod that is send, only accessed from the event loop
+    private TransferLimiter.Ticket ticket;
+    private boolean transferring = false;
+    // true, if the client only knows the modpack request with the hash, it can't read the queue status either
+    private boolean legacyClient = false;
+    // the hashes of the requested mods, if the client uses the connection to download mods
+    private Deque<String> modRequests;
+    private long connectedNanos;
+    private HandshakeEvent handshakeEvent;
+
+    public ServerChannel(PackSegment basePack, Map<String, PackSegment> clientPacks, LegacyPack legacyPack, Map<String, Path> mirroredMods, TransferLimiter limiter) {
+        this.basePack = basePack;
+        this.clientPacks = clientPacks;
+        this.legacyPack = legacyPack;
+        this.mirroredMods = mirroredMods;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.connectedNanos = System.nanoTime();
+        this.handshakeEvent = new HandshakeEvent();
+        this.handshakeEvent.begin();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // Frees the slot, or leaves the queue if the client disconnects
+        releaseSlot();
+        super.channelInactive(ctx);
     }
 
     @Override
@@ -36,8 +91,12 @@ public class ServerChannel extends CommonChannel {
         PacketType packetType = PacketType.values()[packetTypeIdx];
 
         try {
-            if(packetType == PacketType.MODPACK_REQUEST) {
+            if(packetType == PacketType.SEGMENTED_MODPACK_REQUEST) {
                 handleClientRequest(ctx, packet);
+            } else if(packetType == PacketType.MODPACK_REQUEST) {
+                handleLegacyRequest(ctx, packet);
+            } else if(packetType == PacketType.MOD_REQUEST) {
+                handleModRequest(ctx, packet);
             } else {
                 LOGGER.warn("Received unkown packet with type {}", packetType.toString());
                 ctx.close();
@@ -47,29 +106,322 @@ public class ServerChannel extends CommonChannel {
             packet.release();
         }
     }
-    
-    private void handleClientRequest(ChannelHandlerContext ctx, ByteBuf packHashBuf) {
+
+    private void handleClientRequest(ChannelHandlerContext ctx, ByteBuf request) {
         LOGGER.debug("handle client modpack request");
-        
-        byte[] currentPackHash = readBuffer(packHashBuf, 32);
-        LOGGER.debug("Client send hash: {}, server modpack hash: {}", ByteBufUtil.hexDump(currentPackHash), ByteBufUtil.hexDump(this.modpackHash));
-        boolean hashesEqual = Arrays.equals(currentPackHash, this.modpackHash);
-        
-        // Send modpack back
-        int responseLength = 1/* status */ + (hashesEqual ? 0 : this.modpackData.length + 4);
-        ByteBuf response = ctx.alloc().buffer(responseLength);
-        response.writeByte(hashesEqual ? 1 : 0);
-        if(!hashesEqual) {
-            response.writeInt(this.modpackData.length);
-            response.writeBytes(this.modpackData);
+        if(this.ticket != null) {
+            LOGGER.warn("Client send a second modpack request");
+            ctx.close();
+            return;
+        }
+
+        byte[] currentPackHash = readBuffer(request, 32);
+        LOGGER.debug("Client send hash: {}, server modpack hash: {}", ByteBufUtil.hexDump(currentPackHash), ByteBufUtil.hexDump(this.basePack.hash()));
+
+        // read the client packs the client has enabled, together with the hash of its cached version
+        int numClientPacks = request.readInt();
+        List<PackSegment> requestedPacks = new ArrayList<>();
+        List<byte[]> requestedHashes = new ArrayList<>();
+        for(int i = 0; i < numClientPacks; i++) {
+            String name = new String(readBuffer(request, 256), StandardCharsets.UTF_8);
+            byte[] packHash = readBuffer(request, 32);
+            PackSegment clientPack = this.clientPacks.get(name);
+            if(clientPack == null) {
+                LOGGER.debug("Client requested unknown client pack {}", name);
+                continue;
+            }
+            requestedPacks.add(clientPack);
+            requestedHashes.add(packHash);
+        }
+
+        acquireSlot(ctx, () -> sendModpack(ctx, currentPackHash, requestedPacks, requestedHashes));
+    }
+
+    /**
+     * Handles the request of clients, that don't request the client packs separately. They get the modpack with all client packs.
+     */
+    private void handleLegacyRequest(ChannelHandlerContext ctx, ByteBuf request) {
+        LOGGER.debug("handle modpack request of an old client");
+        if(this.ticket != null || this.modRequests != null) {
+            LOGGER.warn("Client send a second modpack request");
+            ctx.close();
+            return;
+        }
+        this.legacyClient = true;
+        byte[] currentPackHash = readBuffer(request, 32);
+        acquireSlot(ctx, () -> this.legacyPack.get().whenComplete((legacyPack, e) -> ctx.executor().execute(() -> {
+            if(e != null) {
+                LOGGER.error("Failed to build the modpack for old clients", e);
+                ctx.close();
+                return;
+            }
+            sendLegacyModpack(ctx, currentPackHash, legacyPack);
+        })));
+    }
+
+    /**
+     * Queues the mod with the requested hash. The mods are send one after another, every mod waits for its own transfer slot,
+     * so a mirror connection does not block the modpack downloads of other clients.
+     */
+    private void handleModRequest(ChannelHandlerContext ctx, ByteBuf request) {
+        if(this.mirroredMods.isEmpty()) {
+            LOGGER.warn("Client requested a mod, but the mod mirror is disabled");
+            ctx.close();
+            return;
+        }
+        String sha1 = new String(readBuffer(request, 64), StandardCharsets.UTF_8);
+        if(this.modRequests == null) {
+            if(this.ticket != null) {
+                LOGGER.warn("Client requested a mod after the modpack");
+                ctx.close();
+                return;
+            }
+            this.modRequests = new ArrayDeque<>();
+        }
+        if(this.modRequests.size() >= MAX_MOD_REQUESTS) {
+            LOGGER.warn("Client requested more than {} mods at once, closing the connection", MAX_MOD_REQUESTS);
+            ctx.close();
+            return;
+        }
+        this.modRequests.add(sha1);
+        if(this.ticket == null) {
+            acquireSlot(ctx, () -> sendNextMod(ctx));
+        }
+    }
+
+    // Waits for a free transfer slot and runs the transfer on the event loop of the channel
+    private void acquireSlot(ChannelHandlerContext ctx, Runnable transfer) {
+        // The callbacks are called from other channels, so switch to our event loop
+        this.ticket = this.limiter.acquire(
+                () -> ctx.executor().execute(transfer),
+                position -> ctx.executor().execute(() -> {
+                    if(!this.legacyClient) {
+                        sendQueueStatus(ctx, position, 0);
+                    }
+                }));
+        if(this.ticket == null) {
+            int retryAfter = this.limiter.retryAfterSeconds();
+            LOGGER.debug("Transfer queue is full, client should retry in {} seconds", retryAfter);
+            PackServerMetrics.getInstance().connectionsQueueFull.increment();
+            if(this.legacyClient) {
+                ctx.close();
+            }else {
+                sendQueueStatus(ctx, 0, retryAfter).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+
+    private void releaseSlot() {
+        if(this.ticket != null) {
+            this.limiter.release(this.ticket);
+            this.ticket = null;
+        }
+    }
+
+    /**
+     * Sends the next requested mod and frees the transfer slot afterwards. The jar is streamed from the disk in slices, like the modpack.
+     * The response contains the hash, a status byte (0 if the mod is send, 1 if the server does not mirror it) and the jar.
+     */
+    private void sendNextMod(ChannelHandlerContext ctx) {
+        String sha1 = this.modRequests.poll();
+        if(sha1 == null || !ctx.channel().isActive()) {
+            releaseSlot();
+            return;
+        }
+        this.transferring = true;
+
+        ChunkedNioFile jar = null;
+        Path file = this.mirroredMods.get(sha1);
+        if(file != null) {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                jar = new ChunkedNioFile(channel, 0, channel.size(), CHUNK_SIZE);
+            }catch(IOException e) {
+                LOGGER.warn("Failed to read the mirrored mod {}", file, e);
+                closeQuietly(channel);
+            }
+        }else {
+            LOGGER.debug("Client requested unknown mod {}", sha1);
+        }
+
+        byte[] hashBytes = sha1.getBytes(StandardCharsets.UTF_8);
+        long jarLength = jar != null ? jar.length() : 0;
+        int headLength = 4 + hashBytes.length + 1;
+        ByteBuf head = writeHeader(ctx.alloc(), (int) (headLength + jarLength), headLength, PacketType.MOD_RESPONSE);
+        head.writeInt(hashBytes.length);
+        head.writeBytes(hashBytes);
+        head.writeByte(jar != null ? 0 : 1);
+
+        long packetLength = head.readableBytes() + jarLength;
+        boolean found = jar != null;
+        ChannelFuture sent;
+        if(jar != null) {
+            ctx.write(head);
+            sent = ctx.writeAndFlush(jar);
+        }else {
+            sent = ctx.writeAndFlush(head);
         }
-        
-        ByteBuf buf = writeHeader(ctx.alloc(), responseLength, PacketType.MODPACK_RESPONSE);
-        buf.writeBytes(response);
-        ctx.writeAndFlush(buf).addListener(ChannelFutureListener.CLOSE);
+        sent.addListener(future -> {
+            this.transferring = false;
+            releaseSlot();
+            if(!future.isSuccess()) {
+                ctx.close();
+                return;
+            }
+            PackServerMetrics metrics = PackServerMetrics.getInstance();
+            metrics.bytesServed.add(packetLength);
+            if(found) {
+                metrics.modsMirrored.increment();
+            }
+            // The next mod waits for a slot again, behind the clients that are already queued
+            if(!this.modRequests.isEmpty()) {
+                acquireSlot(ctx, () -> sendNextMod(ctx));
+            }
+        });
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if(channel != null) {
+            try {
+                channel.close();
+            }catch(IOException e) {
+                LOGGER.debug("Failed to close the mirrored mod", e);
+            }
+        }
+    }
+
+    private void sendModpack(ChannelHandlerContext ctx, byte[] currentPackHash, List<PackSegment> requestedPacks, List<byte[]> requestedHashes) {
+        if(!ctx.channel().isActive()) {
+            return;
+        }
+
+        // Send modpack back, the segment data is not copied into the response
+        CompositeByteBuf response = ctx.alloc().compositeBuffer();
+        int updatedSegments = writeSegment(ctx, response, this.basePack, currentPackHash) ? 1 : 0;
+
+        ByteBuf numPacks = ctx.alloc().buffer(4);
+        numPacks.writeInt(requestedPacks.size());
+        response.addComponent(true, numPacks);
+        for(int i = 0; i < requestedPacks.size(); i++) {
+            PackSegment clientPack = requestedPacks.get(i);
+            byte[] nameBytes = clientPack.name().getBytes(StandardCharsets.UTF_8);
+            ByteBuf name = ctx.alloc().buffer(4 + nameBytes.length);
+            name.writeInt(nameBytes.length);
+            name.writeBytes(nameBytes);
+            response.addComponent(true, name);
+            if(writeSegment(ctx, response, clientPack, requestedHashes.get(i))) {
+                updatedSegments++;
+            }
+        }
+
+        sendResponse(ctx, response, PacketType.SEGMENTED_MODPACK_RESPONSE, updatedSegments);
+    }
+
+    // The response of old clients only contains the single modpack segment
+    private void sendLegacyModpack(ChannelHandlerContext ctx, byte[] currentPackHash, PackSegment legacyPack) {
+        if(!ctx.channel().isActive()) {
+            return;
+        }
+        CompositeByteBuf response = ctx.alloc().compositeBuffer();
+        int updatedSegments = writeSegment(ctx, response, legacyPack, currentPackHash) ? 1 : 0;
+        sendResponse(ctx, response, PacketType.MODPACK_RESPONSE, updatedSegments);
+    }
+
+    // Writes the modpack response and closes the connection afterwards
+    private void sendResponse(ChannelHandlerContext ctx, CompositeByteBuf response, PacketType packetType, int updatedSegments) {
+        this.transferring = true;
+        PackTransferEvent transferEvent = new PackTransferEvent();
+        transferEvent.begin();
+
+        PackServerMetrics metrics = PackServerMetrics.getInstance();
+        (updatedSegments > 0 ? metrics.fullResponses : metrics.upToDateResponses).increment();
+
+        ByteBuf packet = writePacket(ctx.alloc(), response, packetType);
+        int packetLength = packet.readableBytes();
+        long transferStart = System.nanoTime();
+        int segments = updatedSegments;
+        ctx.writeAndFlush(new ChunkedByteBuf(packet, CHUNK_SIZE)).addListener(future -> {
+            if(future.isSuccess()) {
+                metrics.bytesServed.add(packetLength);
+                metrics.transferTime.observeNanos(System.nanoTime() - transferStart);
+            }
+            if(transferEvent.shouldCommit()) {
+                transferEvent.side = "server";
+                transferEvent.remoteAddress = String.valueOf(ctx.channel().remoteAddress());
+                transferEvent.size = packetLength;
+                transferEvent.updatedSegments = segments;
+                transferEvent.success = future.isSuccess();
+                transferEvent.commit();
+            }
+        }).addListener(ChannelFutureListener.CLOSE);
         LOGGER.debug("Send modpack to client");
     }
 
+    /**
+     * Tells the client its position in the transfer queue, or when it should try again if the queue is full
+     */
+    private static ChannelFuture sendQueueStatus(ChannelHandlerContext ctx, int position, int retryAfterSeconds) {
+        ByteBuf buf = writeHeader(ctx.alloc(), 8, PacketType.QUEUE_STATUS);
+        buf.writeInt(position);
+        buf.writeInt(retryAfterSeconds);
+        return ctx.writeAndFlush(buf);
+    }
+
+    /**
+     * Writes the status of the segment and the segment data, if the client has an outdated version of it
+     *
+     * @return true, if the segment data was written
+     */
+    private static boolean writeSegment(ChannelHandlerContext ctx, CompositeByteBuf response, PackSegment segment, byte[] clientHash) {
+        boolean hashesEqual = Arrays.equals(clientHash, segment.hash());
+
+        ByteBuf status = ctx.alloc().buffer(hashesEqual ? 1 : 5);
+        status.writeByte(hashesEqual ? 1 : 0);
+        if(!hashesEqual) {
+            status.writeInt(segment.data().length);
+        }
+        response.addComponent(true, status);
+        if(!hashesEqual) {
+            response.addComponent(true, Unpooled.wrappedBuffer(segment.data()));
+        }
+        return !hashesEqual;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if(evt instanceof SslHandshakeCompletionEvent completion) {
+            if(completion.isSuccess()) {
+                PackServerMetrics.getInstance().handshakeTime.observeNanos(System.nanoTime() - this.connectedNanos);
+            }else {
+                PackServerMetrics.getInstance().handshakeFailures.increment();
+            }
+            if(this.handshakeEvent != null && this.handshakeEvent.shouldCommit()) {
+                this.handshakeEvent.side = "server";
+                this.handshakeEvent.remoteAddress = String.valueOf(ctx.channel().remoteAddress());
+                this.handshakeEvent.success = completion.isSuccess();
+                if(completion.isSuccess()) {
+                    this.handshakeEvent.cipherSuite = ctx.pipeline().get(SslHandler.class).engine().getSession().getCipherSuite();
+                }
+                this.handshakeEvent.commit();
+            }
+            this.handshakeEvent = null;
+        }
+        if(evt instanceof IdleStateEvent idleEvent) {
+            // Queued clients don't send or receive anything, only time out clients that don't send their request or stop reading
+            // A mirror connection without a queued mod is closed as well
+            if(idleEvent.state() == IdleState.READER_IDLE && this.ticket == null) {
+                LOGGER.debug("Client did not send a request in time, closing the connection");
+                ctx.close();
+            }else if(idleEvent.state() == IdleState.WRITER_IDLE && this.transferring) {
+                LOGGER.debug("Client stopped reading the modpack, closing the connection");
+                ctx.close();
+            }
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         // Close the connection when an exception is raised.
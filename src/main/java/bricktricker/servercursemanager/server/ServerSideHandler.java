@@ -7,9 +7,14 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -28,8 +33,10 @@ import com.google.gson.JsonPrimitive;
 
 import bricktricker.servercursemanager.CopyOption;
 import bricktricker.servercursemanager.SideHandler;
+import bricktricker.servercursemanager.StaleFileCollector;
 import bricktricker.servercursemanager.Utils;
 import bricktricker.servercursemanager.client.ClientSideHandler;
+import bricktricker.servercursemanager.jfr.PackBuildEvent;
 import bricktricker.servercursemanager.server.modhandler.CurseModHandler;
 import bricktricker.servercursemanager.server.modhandler.LocalModHandler;
 import bricktricker.servercursemanager.server.modhandler.ModHandler;
@@ -84,6 +91,8 @@ public class ServerSideHandler extends SideHandler {
 	@Override
 	public void initialize() {
 		super.initialize();
+		PackBuildEvent buildEvent = new PackBuildEvent();
+		buildEvent.begin();
 		
 		CopyOption globalCopyOption = CopyOption.KEEP;
 		if(packConfig.has("copyOption")) {
@@ -106,6 +115,10 @@ public class ServerSideHandler extends SideHandler {
 
 		// we download the mods asynchronously, so we save the futures here
 		final List<CompletableFuture<ModHandler.ModResult>> modResultFutures = new ArrayList<>();
+		// the files of all mods in servermods, that are part of the modpack or a client pack
+		final Set<String> referencedMods = new HashSet<>();
+		// the remote mods, that clients can download from this server instead of the CDN
+		final Map<String, Path> mirroredMods = new HashMap<>();
 		
 		JsonArray mods = packConfig.getAsJsonArray(SideHandler.MODS);
 		for(JsonElement modE : mods) {
@@ -121,8 +134,9 @@ public class ServerSideHandler extends SideHandler {
 			}
 		}
 		
-		// Additional client mods:
+		// Additional client mods, every client pack gets its own zip, so clients only download the packs they enabled
 		JsonArray clientPacksManifest = new JsonArray();
+		Map<String, PackSegment> clientPackSegments = new LinkedHashMap<>();
 		if(packConfig.has(SideHandler.CLIENT_PACKS)) {
 		    JsonArray clientPacks = packConfig.getAsJsonArray(SideHandler.CLIENT_PACKS);
 		    for(JsonElement packE : clientPacks) {
@@ -131,8 +145,8 @@ public class ServerSideHandler extends SideHandler {
 		        String name = clientPack.getAsJsonPrimitive("name").getAsString();
 		        JsonArray clientMods = clientPack.getAsJsonArray("mods");
 		        
-		        JsonObject clientPackManifest = new JsonObject();
-		        clientPackManifest.addProperty("name", name);
+		        ByteArrayOutputStream packBaos = new ByteArrayOutputStream();
+		        ZipOutputStream packZos = new ZipOutputStream(packBaos);
 		        
 		        final List<CompletableFuture<ModHandler.ModResult>> clientResultFutures = new ArrayList<>();
 		        
@@ -142,9 +156,9 @@ public class ServerSideHandler extends SideHandler {
 		            
 		            final String source = clientMod.getAsJsonPrimitive("source").getAsString();
 		            if("curse".equalsIgnoreCase(source)) {
-		                clientResultFutures.add(curseModHandler.handleMod(clientMod, zos));
+		                clientResultFutures.add(curseModHandler.handleMod(clientMod, packZos));
 		            }else if("local".equals(source)) {
-		                clientResultFutures.add(localModHandler.handleMod(clientMod, zos));
+		                clientResultFutures.add(localModHandler.handleMod(clientMod, packZos));
 		            }else {
 		                LOGGER.error("Unkown source {} for a mod", source);
 		            }
@@ -156,10 +170,25 @@ public class ServerSideHandler extends SideHandler {
 		            if(result == null) {
 		                continue;
 		            }
+		            referencedMods.add(result.modName());
+		            addMirroredMod(mirroredMods, result.manifestData());
 		            clientManifestMods.add(result.manifestData());
 		        }
-		        clientPackManifest.add("mods", clientManifestMods);
-		        clientPacksManifest.add(clientPackManifest);
+		        
+		        JsonObject clientPackManifest = new JsonObject();
+		        clientPackManifest.add(SideHandler.MODS, clientManifestMods);
+		        if(!writeManifest(packZos, clientPackManifest)) {
+		            continue;
+		        }
+		        
+		        PackSegment segment = PackSegment.of(name, packBaos.toByteArray());
+		        LOGGER.debug("Generated client pack {} {} bytes big", name, segment.data().length);
+		        clientPackSegments.put(name, segment);
+		        
+		        // The base manifest only announces the client pack, its content is send on request
+		        JsonObject clientPackInfo = new JsonObject();
+		        clientPackInfo.addProperty("name", name);
+		        clientPacksManifest.add(clientPackInfo);
 		    }
 		    
 		}
@@ -179,6 +208,7 @@ public class ServerSideHandler extends SideHandler {
             if(result == null) {
                 continue;
             }
+            referencedMods.add(result.modName());
             
             if(result.loadOnServer()) {
                 this.loadedModNames.add(result.modName());   
@@ -187,6 +217,7 @@ public class ServerSideHandler extends SideHandler {
             var manifestData = result.manifestData();
             if(manifestData != null) {
                 manifestMods.add(manifestData);   
+                addMirroredMod(mirroredMods, manifestData);
             }
         }
 
@@ -281,36 +312,221 @@ public class ServerSideHandler extends SideHandler {
 		curseModHandler.close();
 		localModHandler.close();
 		
+		StaleFileCollector staleFileCollector = this.createStaleFileCollector();
+		if(staleFileCollector != null) {
+		    staleFileCollector.collect(referencedMods);
+		}
+		
 		// create modpack zip
 		JsonObject manifest = new JsonObject();
 		manifest.add(SideHandler.MODS, manifestMods);
 		manifest.add(SideHandler.ADDITIONAL, manifestAdditional);
 		manifest.add(SideHandler.CLIENT_PACKS, clientPacksManifest);
+		if(!mirroredMods.isEmpty()) {
+		    manifest.addProperty("mirror", true);
+		}
+
+		if(!writeManifest(zos, manifest)) {
+			return;
+		}
 
+		PackSegment basePack = PackSegment.of(null, baos.toByteArray());
+		LOGGER.debug("Generated modpack {} bytes big", basePack.data().length);
+		if(buildEvent.shouldCommit()) {
+			buildEvent.size = basePack.data().length;
+			buildEvent.mods = manifestMods.size();
+			buildEvent.additionalFiles = manifestAdditional.size();
+			buildEvent.clientPacks = clientPackSegments.size();
+			buildEvent.commit();
+		}
+
+		// Initialize ProfileKeyPairBasedSecurityManager
+		ProfileKeyPairBasedSecurityManager.getInstance();
+		
+		RequestServer.run(this, basePack, clientPackSegments, mirroredMods);
+	}
+
+	// Remembers a remote mod by its hash, if the mod mirror is enabled
+	private void addMirroredMod(Map<String, Path> mirroredMods, JsonObject manifestMod) {
+	    if(manifestMod == null || !this.mirrorMods() || !"remote".equals(manifestMod.getAsJsonPrimitive("source").getAsString())) {
+	        return;
+	    }
+	    Path file = getServermodsFolder().resolve(manifestMod.getAsJsonPrimitive("file").getAsString());
+	    mirroredMods.put(manifestMod.getAsJsonPrimitive("sha1").getAsString(), file);
+	}
+	
+	/**
+	 * Writes the manifest.json file into the zip and closes it
+	 * 
+	 * @return true, if the zip was successfully written
+	 */
+	private static boolean writeManifest(ZipOutputStream zos, JsonObject manifest) {
 		try {
 			ZipEntry manifestEntry = Utils.getStableEntry("manifest.json");
 			zos.putNextEntry(manifestEntry);
 			Utils.saveJson(manifest, zos);
 			zos.closeEntry();
 			zos.close(); // Close pack zip
+			return true;
 		}catch(IOException e) {
 			LOGGER.catching(e);
-			return;
+			return false;
 		}
-
-		byte[] packData = baos.toByteArray();
-		LOGGER.debug("Generated modpack {} bytes big", packData.length);
-
-		// Initialize ProfileKeyPairBasedSecurityManager
-		ProfileKeyPairBasedSecurityManager.getInstance();
-		
-		RequestServer.run(this, packData);
 	}
 
 	public int getPort() {
 		return this.packConfig.getAsJsonPrimitive("port").getAsInt();
 	}
 	
+	/**
+	 * @return The number of threads that handle the client connections, defaults to half of the available processors
+	 */
+	public int getWorkerThreads() {
+		JsonPrimitive workerThreads = this.packConfig.getAsJsonPrimitive("workerThreads");
+		if(workerThreads == null || workerThreads.getAsInt() <= 0) {
+			return Math.max(Runtime.getRuntime().availableProcessors() / 2, 1);
+		}
+		return workerThreads.getAsInt();
+	}
+	
+	/**
+	 * @return The maximum number of modpack transfers that run at the same time, defaults to 8
+	 */
+	public int getMaxTransfers() {
+		JsonPrimitive maxTransfers = this.packConfig.getAsJsonPrimitive("maxTransfers");
+		if(maxTransfers == null || maxTransfers.getAsInt() <= 0) {
+			return 8;
+		}
+		return maxTransfers.getAsInt();
+	}
+	
+	/**
+	 * @return The maximum number of clients that wait for a free transfer slot, defaults to 256
+	 */
+	public int getMaxQueue() {
+		JsonPrimitive maxQueue = this.packConfig.getAsJsonPrimitive("maxQueue");
+		if(maxQueue == null || maxQueue.getAsInt() < 0) {
+			return 256;
+		}
+		return maxQueue.getAsInt();
+	}
+	
+	/**
+	 * @return The bandwidth limit for all pack transfers together in bytes per second, 0 if unlimited
+	 */
+	public long getBandwidthLimit() {
+		return getBandwidth("bandwidthLimit");
+	}
+	
+	/**
+	 * @return The bandwidth limit of a single pack transfer in bytes per second, 0 if unlimited
+	 */
+	public long getClientBandwidthLimit() {
+		return getBandwidth("clientBandwidthLimit");
+	}
+	
+	/**
+	 * @return The bandwidth in bytes per second that is kept free for every online player, 0 if disabled
+	 */
+	public long getPlayerBandwidth() {
+		return getBandwidth("playerBandwidth");
+	}
+	
+	// The bandwidth is configured in KiB/s
+	private long getBandwidth(String key) {
+		JsonPrimitive bandwidth = this.packConfig.getAsJsonPrimitive(key);
+		if(bandwidth == null || bandwidth.getAsLong() <= 0) {
+			return 0;
+		}
+		return bandwidth.getAsLong() * 1024;
+	}
+	
+	/**
+	 * @return The number of connections a single address can open per minute, defaults to 0 (unlimited)
+	 */
+	public int getConnectionRate() {
+		JsonPrimitive connectionRate = this.packConfig.getAsJsonPrimitive("connectionRate");
+		if(connectionRate == null || connectionRate.getAsInt() < 0) {
+			return 0;
+		}
+		return connectionRate.getAsInt();
+	}
+	
+	/**
+	 * @return The number of connections a subnet can open per minute, defaults to 0 (unlimited)
+	 */
+	public int getSubnetConnectionRate() {
+		JsonPrimitive subnetRate = this.packConfig.getAsJsonPrimitive("subnetConnectionRate");
+		if(subnetRate == null || subnetRate.getAsInt() < 0) {
+			return 0;
+		}
+		return subnetRate.getAsInt();
+	}
+	
+	/**
+	 * @return The addresses and subnets that are not rate limited
+	 */
+	public List<String> getConnectionAllowlist() {
+		if(!this.packConfig.has("connectionAllowlist")) {
+			return List.of();
+		}
+		List<String> allowlist = new ArrayList<>();
+		for(JsonElement entry : this.packConfig.getAsJsonArray("connectionAllowlist")) {
+			allowlist.add(entry.getAsString());
+		}
+		return allowlist;
+	}
+	
+	/**
+	 * @return The local port of the metrics endpoint, 0 if it is disabled
+	 */
+	public int getMetricsPort() {
+		JsonPrimitive metricsPort = this.packConfig.getAsJsonPrimitive("metricsPort");
+		return metricsPort == null ? 0 : metricsPort.getAsInt();
+	}
+	
+	public boolean useNativeTransport() {
+		JsonPrimitive nativeTransport = this.packConfig.getAsJsonPrimitive("nativeTransport");
+		return nativeTransport != null && nativeTransport.getAsBoolean();
+	}
+	
+	/**
+	 * @return The collector for old mods in servermods, or null if disabled
+	 */
+	private StaleFileCollector createStaleFileCollector() {
+		JsonPrimitive graceDays = this.packConfig.getAsJsonPrimitive("cleanupGraceDays");
+		int days = graceDays == null ? 7 : graceDays.getAsInt();
+		if(days < 0) {
+			return null;
+		}
+		JsonPrimitive dryRun = this.packConfig.getAsJsonPrimitive("cleanupDryRun");
+		return new StaleFileCollector(getServermodsFolder(), Duration.ofDays(days), dryRun != null && dryRun.getAsBoolean());
+	}
+
+	/**
+	 * @return true, if clients can download the curse mods from this server
+	 */
+	public boolean mirrorMods() {
+		JsonPrimitive mirror = this.packConfig.getAsJsonPrimitive("mirrorMods");
+		return mirror != null && mirror.getAsBoolean();
+	}
+
+	public boolean useOpenSsl() {
+		JsonPrimitive openSsl = this.packConfig.getAsJsonPrimitive("openssl");
+		return openSsl != null && openSsl.getAsBoolean();
+	}
+	
+	/**
+	 * @return The key type of the self signed server certificate, defaults to EC
+	 */
+	public ServerIdentity.KeyType getKeyType() {
+		JsonPrimitive keyType = this.packConfig.getAsJsonPrimitive("keyType");
+		if(keyType == null) {
+			return ServerIdentity.KeyType.EC;
+		}
+		return ServerIdentity.KeyType.getType(keyType.getAsString());
+	}
+	
 	public Pair<File, File> getServerCerts() {
 	    JsonPrimitive certJson = this.packConfig.getAsJsonPrimitive("certificate");
 	    JsonPrimitive keyJson = this.packConfig.getAsJsonPrimitive("key");
@@ -0,0 +1,105 @@
+package bricktricker.servercursemanager.server;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bricktricker.servercursemanager.networking.TlsProvider;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+
+/**
+ * Holds the {@link SslContext} that is shared by all client connections. The context keeps the TLS sessions,
+ * so returning clients can resume their session without a full handshake and without verifying their Mojang key again.
+ * If the certificate is loaded from a file, the context gets rebuild when the certificate or key file changes.
+ */
+public class ServerSslContext {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long SESSION_CACHE_SIZE = 1024;
+    // A resumed session skips the Mojang key and whitelist verification, so a player removed from the whitelist
+    // can only resume sessions for a few minutes. This still covers the reconnects of a single launch
+    private static final long SESSION_TIMEOUT = TimeUnit.MINUTES.toSeconds(5);
+
+    private final Pair<File, File> certPair;
+    private final PrivateKey selfSignedKey;
+    private final X509Certificate selfSignedCert;
+    private final SslProvider provider;
+
+    private volatile SslContext context;
+    private long certModified;
+    private long keyModified;
+
+    /**
+     * @param certPair The certificate and key files from the config, or null if a self signed certificate should be used
+     * @param selfSignedKey The private key of the self signed certificate
+     * @param selfSignedCert The self signed certificate
+     * @param provider The TLS implementation, see {@link bricktricker.servercursemanager.networking.TlsProvider}
+     */
+    public ServerSslContext(Pair<File, File> certPair, PrivateKey selfSignedKey, X509Certificate selfSignedCert, SslProvider provider) {
+        this.certPair = certPair;
+        this.selfSignedKey = selfSignedKey;
+        this.selfSignedCert = selfSignedCert;
+        this.provider = provider;
+        this.context = build();
+    }
+
+    public SslContext get() {
+        return this.context;
+    }
+
+    /**
+     * Rebuilds the context, if the certificate or key file has changed since the context was build
+     */
+    public void reloadIfChanged() {
+        if(this.certPair == null) {
+            return;
+        }
+        if(this.certPair.getLeft().lastModified() == this.certModified && this.certPair.getRight().lastModified() == this.keyModified) {
+            return;
+        }
+
+        LOGGER.info("Server certificate changed, reloading it");
+        try {
+            this.context = build();
+        }catch(UncheckedIOException | IllegalArgumentException e) {
+            LOGGER.error("Failed to reload server certificate, keep using the old one", e);
+        }
+    }
+
+    private SslContext build() {
+        SslContextBuilder sslBuilder;
+        if(this.certPair == null) {
+            sslBuilder = SslContextBuilder.forServer(this.selfSignedKey, this.selfSignedCert);
+        }else {
+            this.certModified = this.certPair.getLeft().lastModified();
+            this.keyModified = this.certPair.getRight().lastModified();
+            RequestServer.checkCertificate(this.certPair.getLeft());
+            sslBuilder = SslContextBuilder.forServer(this.certPair.getLeft(), this.certPair.getRight());
+        }
+
+        try {
+            return TlsProvider.configure(sslBuilder, this.provider)
+                    .trustManager(new MojangCertTrustManager())
+                    .clientAuth(ClientAuth.REQUIRE)
+                    .protocols("TLSv1.3")
+                    .sessionCacheSize(SESSION_CACHE_SIZE)
+                    .sessionTimeout(SESSION_TIMEOUT)
+                    .build();
+        } catch (SSLException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package bricktricker.servercursemanager.server;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+
+/**
+ * The netty transport used by the {@link RequestServer}. The native transports are only used if
+ * they are enabled in the config and the native library could be loaded.
+ */
+public enum ServerTransport {
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            try {
+                return IOUringHolder.isAvailable();
+            }catch(LinkageError e) {
+                // io_uring is not shipped with minecraft, the classes are only present if the user added them
+                return false;
+            }
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return IOUringHolder.newEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return IOUringHolder.serverChannelClass();
+        }
+    },
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            try {
+                return EpollHolder.isAvailable();
+            }catch(LinkageError e) {
+                return false;
+            }
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return EpollHolder.newEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollHolder.serverChannelClass();
+        }
+    },
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+    };
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    abstract boolean isAvailable();
+
+    public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    public abstract Class<? extends ServerSocketChannel> serverChannelClass();
+
+    /**
+     * Selects the transport to use. If native transports are enabled, io_uring is preferred over epoll.
+     *
+     * @param nativeTransport true if a native transport should be used if available
+     * @return The best available transport
+     */
+    public static ServerTransport select(boolean nativeTransport) {
+        if(!nativeTransport) {
+            return NIO;
+        }
+
+        for(ServerTransport transport : values()) {
+            if(transport.isAvailable()) {
+                LOGGER.debug("Using {} transport", transport);
+                return transport;
+            }
+        }
+        return NIO;
+    }
+
+    // The holder classes are only loaded if the native transport is used, so missing classes don't break NIO
+    private static final class IOUringHolder {
+        private static boolean isAvailable() {
+            return IOUring.isAvailable();
+        }
+
+        private static EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new IOUringEventLoopGroup(threads, threadFactory);
+        }
+
+        private static Class<? extends ServerSocketChannel> serverChannelClass() {
+            return IOUringServerSocketChannel.class;
+        }
+    }
+
+    private static final class EpollHolder {
+        private static boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        private static EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        private static Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package bricktricker.servercursemanager.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Limits the number of modpack transfers that run at the same time. Clients over the limit wait in a
+ * first come, first served queue and are told their position. If the queue is full, they are told when to retry.
+ */
+public class TransferLimiter {
+
+    // assumed transfer duration, until the first transfer finished
+    private static final long INITIAL_TRANSFER_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int MIN_RETRY_SECONDS = 5;
+    private static final int MAX_RETRY_SECONDS = 300;
+
+    private final int maxTransfers;
+    private final int maxQueue;
+
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+    private int running = 0;
+    // moving average of the transfer duration, used to estimate the retry time
+    private long avgTransferMillis = INITIAL_TRANSFER_MILLIS;
+
+    public TransferLimiter(int maxTransfers, int maxQueue) {
+        this.maxTransfers = maxTransfers;
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * Requests a transfer slot. The onStart callback is called right away if a slot is free, otherwise when the
+     * ticket reaches the head of the queue. The position listener is called every time the queue position changes.
+     *
+     * @return The ticket, that needs to be released once the transfer is done, or null if the queue is full
+     */
+    public Ticket acquire(Runnable onStart, IntConsumer positionListener) {
+        Ticket ticket = new Ticket(onStart, positionListener);
+        int position;
+        synchronized(this) {
+            if(this.running < this.maxTransfers) {
+                this.running++;
+                ticket.start();
+                position = 0;
+            }else if(this.queue.size() < this.maxQueue) {
+                this.queue.addLast(ticket);
+                position = this.queue.size();
+            }else {
+                return null;
+            }
+        }
+
+        if(position == 0) {
+            ticket.onStart.run();
+        }else {
+            ticket.positionListener.accept(position);
+        }
+        return ticket;
+    }
+
+    /**
+     * Frees the slot of a finished transfer or removes a waiting ticket from the queue. Releasing a ticket twice has no effect.
+     */
+    public void release(Ticket ticket) {
+        List<Ticket> started = new ArrayList<>();
+        List<Ticket> waiting;
+        synchronized(this) {
+            if(ticket.released) {
+                return;
+            }
+            ticket.released = true;
+
+            boolean queueChanged;
+            if(ticket.started) {
+                this.running--;
+                long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.startedNanos);
+                this.avgTransferMillis = (this.avgTransferMillis * 7 + duration) / 8;
+                queueChanged = false;
+            }else {
+                queueChanged = this.queue.remove(ticket);
+            }
+
+            while(this.running < this.maxTransfers && !this.queue.isEmpty()) {
+                Ticket next = this.queue.pollFirst();
+                next.start();
+                this.running++;
+                started.add(next);
+                queueChanged = true;
+            }
+            waiting = queueChanged ? new ArrayList<>(this.queue) : List.of();
+        }
+
+        // Call the listeners outside of the lock
+        started.forEach(t -> t.onStart.run());
+        for(int i = 0; i < waiting.size(); i++) {
+            waiting.get(i).positionListener.accept(i + 1);
+        }
+    }
+
+    public synchronized int getRunning() {
+        return this.running;
+    }
+
+    public synchronized int getQueued() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return The estimated time in seconds, until a client that was rejected should try again
+     */
+    public synchronized int retryAfterSeconds() {
+        long rounds = this.queue.size() / this.maxTransfers + 1;
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(rounds * this.avgTransferMillis);
+        return (int) Math.min(Math.max(seconds, MIN_RETRY_SECONDS), MAX_RETRY_SECONDS);
+    }
+
+    public static final class Ticket {
+        private final Runnable onStart;
+        private final IntConsumer positionListener;
+        // guarded by the limiter
+        private boolean started = false;
+        private long startedNanos;
+        private boolean released = false;
+
+        private Ticket(Runnable onStart, IntConsumer positionListener) {
+            this.onStart = onStart;
+            this.positionListener = positionListener;
+        }
+
+        private void start() {
+            this.started = true;
+            this.startedNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package bricktricker.servercursemanager.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed buckets. Recording a value does not allocate, the buckets are striped counters.
+ */
+public class Histogram {
+
+    private final String name;
+    private final String help;
+    // upper bounds of the buckets in seconds
+    private final double[] bounds;
+    private final long[] boundsNanos;
+    // the last counter is the +Inf bucket
+    private final LongAdder[] buckets;
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help, double... bounds) {
+        this.name = name;
+        this.help = help;
+        this.bounds = bounds;
+        this.boundsNanos = new long[bounds.length];
+        for(int i = 0; i < bounds.length; i++) {
+            this.boundsNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        this.buckets = new LongAdder[bounds.length + 1];
+        for(int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observeNanos(long nanos) {
+        int bucket = 0;
+        while(bucket < this.boundsNanos.length && nanos > this.boundsNanos[bucket]) {
+            bucket++;
+        }
+        this.buckets[bucket].increment();
+        this.sumNanos.add(nanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for(LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The average duration in milliseconds, or 0 if nothing was recorded yet
+     */
+    public double averageMillis() {
+        long count = count();
+        return count == 0 ? 0 : this.sumNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Writes the histogram in the Prometheus text format
+     */
+    void export(StringBuilder out) {
+        out.append("# HELP ").append(this.name).append(' ').append(this.help).append('\n');
+        out.append("# TYPE ").append(this.name).append(" histogram\n");
+        long cumulative = 0;
+        for(int i = 0; i < this.buckets.length; i++) {
+            cumulative += this.buckets[i].sum();
+            String le = i < this.bounds.length ? Double.toString(this.bounds[i]) : "+Inf";
+            out.append(this.name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(this.name).append("_sum ").append(this.sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+        out.append(this.name).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,97 @@
+package bricktricker.servercursemanager.server.metrics;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+
+/**
+ * A minimal HTTP endpoint, that serves the metrics in the Prometheus text format on {@code /metrics}.
+ * It only listens on the loopback address, so the metrics are not visible from the outside.
+ */
+public final class MetricsServer {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private MetricsServer() {
+    }
+
+    public static void run(EventLoopGroup group, Class<? extends ServerChannel> channelClass, int port) {
+        new ServerBootstrap()
+            .group(group)
+            .channel(channelClass)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast("lines", new LineBasedFrameDecoder(8192));
+                    ch.pipeline().addLast("string", new StringDecoder(StandardCharsets.US_ASCII));
+                    ch.pipeline().addLast("request", new MetricsRequestHandler());
+                }
+            })
+            .bind(InetAddress.getLoopbackAddress(), port)
+            .addListener((ChannelFutureListener) future -> {
+                if(future.isSuccess()) {
+                    LOGGER.info("ServerCurseManager metrics available at http://{}:{}/metrics", InetAddress.getLoopbackAddress().getHostAddress(), port);
+                }else {
+                    LOGGER.error("Failed to start the metrics endpoint on port {}", port, future.cause());
+                }
+            });
+    }
+
+    private static class MetricsRequestHandler extends SimpleChannelInboundHandler<String> {
+
+        private String requestLine = null;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, String line) {
+            if(this.requestLine == null) {
+                this.requestLine = line;
+                return;
+            }
+            if(!line.isEmpty()) {
+                // ignore the headers
+                return;
+            }
+
+            String[] request = this.requestLine.split(" ");
+            ByteBuf response;
+            if(request.length >= 2 && "GET".equals(request[0]) && "/metrics".equals(request[1])) {
+                response = response(ctx, "200 OK", PackServerMetrics.getInstance().export());
+            }else {
+                response = response(ctx, "404 Not Found", "Not found\n");
+            }
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        private static ByteBuf response(ChannelHandlerContext ctx, String status, String body) {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            String header = "HTTP/1.1 " + status + "\r\n"
+                    + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                    + "Content-Length: " + bodyBytes.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            ByteBuf buf = ctx.alloc().buffer(header.length() + bodyBytes.length);
+            buf.writeCharSequence(header, StandardCharsets.US_ASCII);
+            buf.writeBytes(bodyBytes);
+            return buf;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.debug("Error in metrics request", cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package bricktricker.servercursemanager.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters and histograms of the pack server. They can be read with JMX and, if enabled, from a local
+ * HTTP endpoint in the Prometheus text format. Recording a value only increments striped counters.
+ */
+public final class PackServerMetrics implements PackServerMetricsMBean {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final PackServerMetrics INSTANCE = new PackServerMetrics();
+
+    public static PackServerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public final LongAdder connectionsQueueFull = new LongAdder();
+    public final LongAdder handshakeFailures = new LongAdder();
+    public final LongAdder verificationFailures = new LongAdder();
+    public final LongAdder fullResponses = new LongAdder();
+    public final LongAdder upToDateResponses = new LongAdder();
+    public final LongAdder bytesServed = new LongAdder();
+    public final LongAdder modsMirrored = new LongAdder();
+
+    public final Histogram handshakeTime = new Histogram("scm_handshake_seconds", "Duration of the TLS handshake, including the client verification",
+            0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30);
+    public final Histogram verificationTime = new Histogram("scm_verification_seconds", "Duration of the Mojang key and whitelist verification",
+            0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10);
+    public final Histogram transferTime = new Histogram("scm_transfer_seconds", "Duration of a modpack transfer",
+            0.1, 0.5, 1, 5, 10, 30, 60, 120, 300, 600);
+
+    // provided by the server components, once the server is started
+    private volatile LongSupplier connectionsAccepted = () -> 0;
+    private volatile LongSupplier connectionsRateLimited = () -> 0;
+    private volatile IntSupplier activeTransfers = () -> 0;
+    private volatile IntSupplier queuedTransfers = () -> 0;
+    // bytes per second of all transfers together
+    private volatile LongSupplier transferThroughput = () -> 0;
+
+    private PackServerMetrics() {
+    }
+
+    public void setConnectionCounters(LongSupplier accepted, LongSupplier rateLimited) {
+        this.connectionsAccepted = accepted;
+        this.connectionsRateLimited = rateLimited;
+    }
+
+    public void setTransferGauges(IntSupplier active, IntSupplier queued) {
+        this.activeTransfers = active;
+        this.queuedTransfers = queued;
+    }
+
+    public void setTransferThroughput(LongSupplier throughput) {
+        this.transferThroughput = throughput;
+    }
+
+    /**
+     * Registers the metrics as MBean, so they can be read with JMX
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("bricktricker.servercursemanager:type=PackServer"));
+        }catch(JMException e) {
+            LOGGER.warn("Failed to register the pack server metrics in JMX", e);
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text format
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "scm_connections_accepted_total", "Connections that passed the rate limit", getConnectionsAccepted());
+        out.append("# HELP scm_connections_rejected_total Connections that were closed before the transfer\n");
+        out.append("# TYPE scm_connections_rejected_total counter\n");
+        out.append("scm_connections_rejected_total{reason=\"rate_limit\"} ").append(getConnectionsRateLimited()).append('\n');
+        out.append("scm_connections_rejected_total{reason=\"queue_full\"} ").append(getConnectionsQueueFull()).append('\n');
+        counter(out, "scm_handshake_failures_total", "Failed TLS handshakes", getHandshakeFailures());
+        counter(out, "scm_verification_failures_total", "Clients that failed the Mojang key or whitelist verification", getVerificationFailures());
+        out.append("# HELP scm_responses_total Modpack responses by the state of the client modpack\n");
+        out.append("# TYPE scm_responses_total counter\n");
+        out.append("scm_responses_total{type=\"full\"} ").append(getFullResponses()).append('\n');
+        out.append("scm_responses_total{type=\"up_to_date\"} ").append(getUpToDateResponses()).append('\n');
+        counter(out, "scm_bytes_served_total", "Bytes of completed modpack and mod responses", getBytesServed());
+        counter(out, "scm_mods_mirrored_total", "Mods that clients downloaded from the mirror", getModsMirrored());
+        gauge(out, "scm_transfers_active", "Modpack transfers that are running", getActiveTransfers());
+        gauge(out, "scm_transfers_queued", "Clients that wait for a free transfer slot", getQueuedTransfers());
+        gauge(out, "scm_transfer_throughput_bytes", "Bytes per second send to all clients in the last second", getThroughput());
+        this.handshakeTime.export(out);
+        this.verificationTime.export(out);
+        this.transferTime.export(out);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return this.connectionsAccepted.getAsLong();
+    }
+
+    @Override
+    public long getConnectionsRateLimited() {
+        return this.connectionsRateLimited.getAsLong();
+    }
+
+    @Override
+    public long getConnectionsQueueFull() {
+        return this.connectionsQueueFull.sum();
+    }
+
+    @Override
+    public long getHandshakeFailures() {
+        return this.handshakeFailures.sum();
+    }
+
+    @Override
+    public long getVerificationFailures() {
+        return this.verificationFailures.sum();
+    }
+
+    @Override
+    public long getFullResponses() {
+        return this.fullResponses.sum();
+    }
+
+    @Override
+    public long getUpToDateResponses() {
+        return this.upToDateResponses.sum();
+    }
+
+    @Override
+    public long getBytesServed() {
+        return this.bytesServed.sum();
+    }
+
+    @Override
+    public long getModsMirrored() {
+        return this.modsMirrored.sum();
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return this.activeTransfers.getAsInt();
+    }
+
+    @Override
+    public int getQueuedTransfers() {
+        return this.queuedTransfers.getAsInt();
+    }
+
+    @Override
+    public long getThroughput() {
+        return this.transferThroughput.getAsLong();
+    }
+
+    @Override
+    public double getAverageHandshakeMillis() {
+        return this.handshakeTime.averageMillis();
+    }
+
+    @Override
+    public double getAverageVerificationMillis() {
+        return this.verificationTime.averageMillis();
+    }
+
+    @Override
+    public double getAverageTransferMillis() {
+        return this.transferTime.averageMillis();
+    }
+}
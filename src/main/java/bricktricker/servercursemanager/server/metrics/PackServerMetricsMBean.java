@@ -0,0 +1,40 @@
+package bricktricker.servercursemanager.server.metrics;
+
+/**
+ * The metrics of the pack server, as they are shown in JMX
+ */
+public interface PackServerMetricsMBean {
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRateLimited();
+
+    long getConnectionsQueueFull();
+
+    long getHandshakeFailures();
+
+    long getVerificationFailures();
+
+    long getFullResponses();
+
+    long getUpToDateResponses();
+
+    long getBytesServed();
+
+    long getModsMirrored();
+
+    int getActiveTransfers();
+
+    int getQueuedTransfers();
+
+    /**
+     * @return The bytes per second send to all clients together in the last second
+     */
+    long getThroughput();
+
+    double getAverageHandshakeMillis();
+
+    double getAverageVerificationMillis();
+
+    double getAverageTransferMillis();
+}
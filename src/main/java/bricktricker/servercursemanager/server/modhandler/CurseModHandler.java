@@ -83,7 +83,12 @@ public class CurseModHandler extends ModHandler {
                 manifestMod.addProperty("source", "remote");
                 manifestMod.addProperty("url", mapping.downloadUrl());
                 manifestMod.addProperty("file", mapping.fileName());
-                manifestMod.addProperty("sha1", mapping.sha1());   
+                manifestMod.addProperty("sha1", mapping.sha1());
+                // lets the client show the download progress
+                long size = serverModsPath.resolve(mapping.fileName()).toFile().length();
+                if(size > 0) {
+                    manifestMod.addProperty("size", size);
+                }
             }
             
             return new ModResult(manifestMod, mapping.fileName(), loadOnServer(mod));
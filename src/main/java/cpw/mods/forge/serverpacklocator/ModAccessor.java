@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -20,6 +21,9 @@ public class ModAccessor {
     private static Function<UUID, CompletableFuture<Boolean>> isWhiteListed = null;
     private static Supplier<CompletableFuture<Boolean>> isWhiteListEnabled = null;
     private static Function<UUID, CompletableFuture<Optional<String>>> nameResolver = null;
+    private static Supplier<Integer> playerCount = null;
+    private static BooleanSupplier packUpdateCheck = null;
+    private static int packUpdateInterval = 0;
     
     private static List<Pair<String, Boolean>> clientPacks;
     public static Consumer<List<Pair<String, Boolean>>> clientPackSelectionConsumer; 
@@ -58,12 +62,54 @@ public class ModAccessor {
         ModAccessor.nameResolver = resolver;
     }
     
-    public static String resolveName(UUID id)
+    public static CompletableFuture<String> resolveName(UUID id)
     {
         if(nameResolver == null) {
-            return id.toString();
+            return CompletableFuture.completedFuture(id.toString());
         }
-        return nameResolver.apply(id).join().orElseGet(id::toString);
+        return nameResolver.apply(id).thenApply(name -> name.orElseGet(id::toString));
+    }
+    
+    // Called from the pack server threads, so it must not need the server thread
+    public static void setPlayerCount(final Supplier<Integer> playerCount)
+    {
+        ModAccessor.playerCount = playerCount;
+    }
+    
+    /**
+     * @return The number of players on the server, or -1 if the utility mod did not provide it
+     */
+    public static int getPlayerCount()
+    {
+        if(playerCount == null) {
+            return -1;
+        }
+        Integer count = playerCount.get();
+        return count == null ? -1 : count;
+    }
+    
+    /**
+     * @param check Downloads a newer modpack for the next launch, returns true if it did
+     * @param intervalMinutes The minutes between two checks, 0 if disabled
+     */
+    public static void setPackUpdateCheck(final BooleanSupplier check, final int intervalMinutes)
+    {
+        ModAccessor.packUpdateCheck = check;
+        ModAccessor.packUpdateInterval = intervalMinutes;
+    }
+    
+    /**
+     * @return The minutes between two checks for a modpack update, 0 if the utility mod should not check
+     */
+    public static int getPackUpdateInterval()
+    {
+        return packUpdateCheck == null ? 0 : packUpdateInterval;
+    }
+    
+    // Called by the utility mod on a background thread, blocks until the check is done
+    public static boolean checkForPackUpdate()
+    {
+        return packUpdateCheck != null && packUpdateCheck.getAsBoolean();
     }
     
     public static List<Pair<String, Boolean>> getClientPacks() {
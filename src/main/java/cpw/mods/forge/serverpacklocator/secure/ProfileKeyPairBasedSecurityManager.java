@@ -1,10 +1,10 @@
 package cpw.mods.forge.serverpacklocator.secure;
 
 import com.mojang.authlib.minecraft.UserApiService;
-import com.mojang.authlib.yggdrasil.ServicesKeySet;
 import com.mojang.authlib.yggdrasil.YggdrasilAuthenticationService;
 import com.mojang.authlib.yggdrasil.response.KeyPairResponse;
 
+import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
 import cpw.mods.modlauncher.ArgumentHandler;
 import cpw.mods.modlauncher.Launcher;
 
@@ -12,11 +12,17 @@ import java.lang.reflect.Field;
 import java.net.Proxy;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.time.Instant;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Based on https://github.com/cpw/serverpacklocator/blob/4496cf9ba45515b286bde1a3a79513e75b69754e/src/main/java/cpw/mods/forge/serverpacklocator/secure/ProfileKeyPairBasedSecurityManager.java
@@ -25,30 +31,38 @@ import java.util.UUID;
  * Removed base interface
  * Renamed sessionId => playerUUID
  * Removed all the HTTP Based methods
+ * The services keys and the profile key pair are cached on disk
  */
 public final class ProfileKeyPairBasedSecurityManager
 {
+    private static final Logger LOGGER = LogManager.getLogger();
     
 	// For now, we do not support custom proxies.
     private final static YggdrasilAuthenticationService AUTH_SERVICE = new YggdrasilAuthenticationService(Proxy.NO_PROXY);
 
     private static final UUID DEFAULT_NILL_UUID = new UUID(0L, 0L);
 
+    // Started by the first call of getProfileKeyPairAsync, loaded again if it failed or expires soon
+    private static CompletableFuture<ProfileKeyPair> profileKeyPair;
+
     private static final ProfileKeyPairBasedSecurityManager INSTANCE = new ProfileKeyPairBasedSecurityManager();
     public static ProfileKeyPairBasedSecurityManager getInstance()
     {
         return INSTANCE;
     }
 
-    private final SigningHandler playerSigningHandler;
+    // Loaded on first use. The constructor runs during class initialization, so it must not wait for the
+    // key pair: the loading task calls static methods of this class and would block on the initialization lock.
+    private volatile SigningHandler playerSigningHandler;
     private final UUID playerUUID;
     private final SignatureValidator mojangValidator;
+    private final VerifiedKeyCache verifiedKeys = new VerifiedKeyCache();
 
     private ProfileKeyPairBasedSecurityManager()
     {
-        playerSigningHandler = fetchSigningHandler();
         playerUUID = fetchPlayerUUID();
-        mojangValidator = fetchMojangValidator();
+        // Only the server verifies player keys
+        mojangValidator = LaunchEnvironmentHandler.INSTANCE.getDist().isDedicatedServer() ? fetchMojangValidator() : SignatureValidator.ALWAYS_FAIL;
     }
     
     public UUID getPlayerUUID() {
@@ -60,7 +74,16 @@ public final class ProfileKeyPairBasedSecurityManager
     }
     
     public SigningHandler getSigningHandler() {
-    	return this.playerSigningHandler;
+    	final ProfileKeyPair keyPair = getProfileKeyPair();
+    	if (keyPair == null)
+    	    return null;
+
+    	SigningHandler handler = this.playerSigningHandler;
+    	if (handler == null || handler.keyPair() != keyPair) {
+    	    handler = new SigningHandler(keyPair);
+    	    this.playerSigningHandler = handler;
+    	}
+    	return handler;
     }
 
     private static ArgumentHandler getArgumentHandler() {
@@ -127,32 +150,64 @@ public final class ProfileKeyPairBasedSecurityManager
         return apiService.getKeyPair();
     }
 
+    /**
+     * Returns the profile key pair of the player, either from the disk cache or from the Mojang API. The key pair is
+     * kept for the whole process, unless loading it failed or it expires soon. The future completes with null,
+     * if the player has no key pair.
+     */
+    public static synchronized CompletableFuture<ProfileKeyPair> getProfileKeyPairAsync() {
+        if (profileKeyPair == null || !isUsable(profileKeyPair)) {
+            profileKeyPair = CompletableFuture.supplyAsync(ProfileKeyPairBasedSecurityManager::loadProfileKeyPair);
+        }
+        return profileKeyPair;
+    }
+
+    // A running load is shared with all callers
+    private static boolean isUsable(CompletableFuture<ProfileKeyPair> keyPair) {
+        if (!keyPair.isDone())
+            return true;
+        if (keyPair.isCompletedExceptionally())
+            return false;
+        final ProfileKeyPair loaded = keyPair.join();
+        return loaded != null && !ProfileKeyPairCache.expiresSoon(loaded.publicKeyData().expiresAt());
+    }
+
+    /**
+     * @return The profile key pair of the player, or null if the player has none or it could not be loaded
+     */
     public static ProfileKeyPair getProfileKeyPair() {
+        try {
+            return getProfileKeyPairAsync().join();
+        } catch (CompletionException e) {
+            LOGGER.error("Failed to load the profile key pair", e.getCause());
+            return null;
+        }
+    }
+
+    private static ProfileKeyPair loadProfileKeyPair() {
+        final UUID playerUUID = fetchPlayerUUID();
+        final Path cacheFile = LaunchEnvironmentHandler.INSTANCE.getGameDir().resolve("serverpack").resolve("profilekey.json");
+        final ProfileKeyPair cached = ProfileKeyPairCache.load(cacheFile, playerUUID);
+        if (cached != null)
+            return cached;
+
         final KeyPairResponse keyPairResponse = getKeyPair();
         if (keyPairResponse == null)
             return null;
 
-        return new ProfileKeyPair(Crypt.stringToPemRsaPrivateKey(keyPairResponse.keyPair().privateKey()),
+        final ProfileKeyPair keyPair = new ProfileKeyPair(Crypt.stringToPemRsaPrivateKey(keyPairResponse.keyPair().privateKey()),
                 new PublicKeyData(
                 Crypt.stringToRsaPublicKey(keyPairResponse.keyPair().publicKey()),
                 Instant.parse(keyPairResponse.expiresAt()),
                 keyPairResponse.publicKeySignature().array()));
-    }
-
-    private static SigningHandler fetchSigningHandler() {
-        final ProfileKeyPair profileKeyPair = getProfileKeyPair();
-        if (profileKeyPair == null)
-            return null;
-
-        return new SigningHandler(profileKeyPair);
+        ProfileKeyPairCache.save(cacheFile, playerUUID, keyPair);
+        return keyPair;
     }
 
     private static SignatureValidator fetchMojangValidator() {
-        final ServicesKeySet keyInfo = AUTH_SERVICE.getServicesKeySet();
-        if (keyInfo == null)
-            return SignatureValidator.ALWAYS_FAIL;
-
-        return SignatureValidator.from(keyInfo);
+        // The keys are cached on disk, so the server start does not wait for the services endpoint
+        final Path cacheFile = LaunchEnvironmentHandler.INSTANCE.getGameDir().resolve("serverpack").resolve("serviceskeys.json");
+        return new ServicesKeySetCache(cacheFile, AUTH_SERVICE::getServicesKeySet).validator();
     }
     
     public void validatePublicKey(PublicKeyData keyData, UUID playerUUID) throws Exception
@@ -163,9 +218,13 @@ public final class ProfileKeyPairBasedSecurityManager
             if (keyData.expiresAt().isBefore(Instant.now())) {
                 throw new Exception("Public key has expired!");
             }
+            if (this.verifiedKeys.isVerified(playerUUID, keyData)) {
+                return;
+            }
             if (!keyData.verifyPlayerId(this.mojangValidator, playerUUID)) {
                 throw new Exception("Invalid public key!");
             }
+            this.verifiedKeys.add(playerUUID, keyData);
         }
     }
 
@@ -0,0 +1,107 @@
+package cpw.mods.forge.serverpacklocator.secure;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonObject;
+
+import bricktricker.servercursemanager.Utils;
+import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager.ProfileKeyPair;
+import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager.PublicKeyData;
+
+/**
+ * Stores the profile key pair of the player on disk, so the client does not need to fetch it from Mojang on every launch.
+ * The file is only readable by the current user, and the key pair is only used for the player it was fetched for.
+ */
+public final class ProfileKeyPairCache
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Don't use a key pair, that expires soon
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private ProfileKeyPairCache()
+    {
+    }
+
+    /**
+     * @return The cached key pair of the player, or null if no valid key pair is cached
+     */
+    public static ProfileKeyPair load(Path cacheFile, UUID playerUUID)
+    {
+        if(!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+
+        try {
+            JsonObject cache = Utils.loadJson(cacheFile).getAsJsonObject();
+            if(!playerUUID.toString().equals(cache.getAsJsonPrimitive("uuid").getAsString())) {
+                return null;
+            }
+
+            Instant expiresAt = Instant.parse(cache.getAsJsonPrimitive("expiresAt").getAsString());
+            if(expiresSoon(expiresAt)) {
+                LOGGER.debug("Cached profile key pair expires soon, fetching a new one");
+                return null;
+            }
+
+            Base64.Decoder decoder = Base64.getDecoder();
+            return new ProfileKeyPair(
+                    Crypt.byteToPrivateKey(decoder.decode(cache.getAsJsonPrimitive("privateKey").getAsString())),
+                    new PublicKeyData(
+                            Crypt.byteToPublicKey(decoder.decode(cache.getAsJsonPrimitive("publicKey").getAsString())),
+                            expiresAt,
+                            decoder.decode(cache.getAsJsonPrimitive("signature").getAsString())));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to load cached profile key pair", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true, if a key pair with this expiry date should not be used anymore
+     */
+    public static boolean expiresSoon(Instant expiresAt)
+    {
+        return expiresAt.minusMillis(EXPIRY_MARGIN_MILLIS).isBefore(Instant.now());
+    }
+
+    public static void save(Path cacheFile, UUID playerUUID, ProfileKeyPair keyPair)
+    {
+        Base64.Encoder encoder = Base64.getEncoder();
+        JsonObject cache = new JsonObject();
+        cache.addProperty("uuid", playerUUID.toString());
+        cache.addProperty("expiresAt", keyPair.publicKeyData().expiresAt().toString());
+        cache.addProperty("privateKey", encoder.encodeToString(keyPair.privateKey().getEncoded()));
+        cache.addProperty("publicKey", encoder.encodeToString(keyPair.publicKeyData().key().getEncoded()));
+        cache.addProperty("signature", encoder.encodeToString(keyPair.publicKeyData().publicKeySignature()));
+
+        try {
+            // Write into a file that is only accessible by the current user, then move it into place
+            Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            Files.deleteIfExists(tmpFile);
+            if(tmpFile.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(tmpFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            Utils.saveJson(cache, tmpFile);
+            try {
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to save profile key pair", e);
+        }
+    }
+}
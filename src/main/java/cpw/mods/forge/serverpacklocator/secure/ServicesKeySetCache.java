@@ -0,0 +1,168 @@
+package cpw.mods.forge.serverpacklocator.secure;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.mojang.authlib.yggdrasil.ServicesKeyInfo;
+import com.mojang.authlib.yggdrasil.ServicesKeySet;
+import com.mojang.authlib.yggdrasil.ServicesKeyType;
+import com.mojang.authlib.yggdrasil.YggdrasilServicesKeyInfo;
+
+import bricktricker.servercursemanager.Utils;
+
+/**
+ * Keeps the Mojang services keys, that are used to verify the player keys, on disk.
+ * The cached keys are used immediately at startup and refreshed from the services endpoint in the background.
+ */
+public final class ServicesKeySetCache
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long RETRY_MINUTES = 5;
+    // maximum time a verification waits for the first download, if no keys are cached
+    private static final long FIRST_FETCH_TIMEOUT_SECONDS = 30;
+
+    private final Path cacheFile;
+    private final Supplier<ServicesKeySet> source;
+    private final ScheduledExecutorService refreshExecutor;
+    private final CompletableFuture<Void> firstLoad = new CompletableFuture<>();
+
+    private volatile SignatureValidator validator;
+
+    /**
+     * @param cacheFile The file where the keys are stored
+     * @param source The services endpoint, returns null or an empty key set if the keys could not be fetched
+     */
+    public ServicesKeySetCache(Path cacheFile, Supplier<ServicesKeySet> source)
+    {
+        this(cacheFile, source, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ServerCurseManager ServicesKey refresh");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    // Tests pass their own executor, to run the refreshes without waiting for them
+    ServicesKeySetCache(Path cacheFile, Supplier<ServicesKeySet> source, ScheduledExecutorService refreshExecutor)
+    {
+        this.cacheFile = cacheFile;
+        this.source = source;
+        this.refreshExecutor = refreshExecutor;
+
+        long fetched = loadFromDisk();
+        long age = System.currentTimeMillis() - fetched;
+        long refreshDelay = Math.max(TTL_MILLIS - age, 0);
+        LOGGER.debug("Refreshing services keys in {} ms", refreshDelay);
+        this.refreshExecutor.schedule(this::refresh, refreshDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return A validator that uses the current services keys
+     */
+    public SignatureValidator validator()
+    {
+        return (payload, expectedSignature) -> {
+            SignatureValidator current = this.validator;
+            if(current == null) {
+                // No keys cached yet, wait for the first download
+                try {
+                    this.firstLoad.get(FIRST_FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    LOGGER.warn("Services keys are not available yet");
+                    return false;
+                }
+                current = this.validator;
+            }
+            return current != null && current.validate(payload, expectedSignature);
+        };
+    }
+
+    /**
+     * @return The time the keys on disk were fetched, or 0 if no keys are cached
+     */
+    private long loadFromDisk()
+    {
+        if(!Files.isRegularFile(this.cacheFile)) {
+            return 0;
+        }
+
+        try {
+            JsonObject cache = Utils.loadJson(this.cacheFile).getAsJsonObject();
+            List<ServicesKeyInfo> keys = cache.getAsJsonArray("keys").asList().stream()
+                    .map(JsonElement::getAsString)
+                    .map(key -> (ServicesKeyInfo) YggdrasilServicesKeyInfo.parse(ByteBuffer.wrap(Base64.getDecoder().decode(key))))
+                    .toList();
+            setKeys(type -> type == ServicesKeyType.PROFILE_KEY ? keys : List.of());
+            return cache.getAsJsonPrimitive("fetched").getAsLong();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to load cached services keys", e);
+            return 0;
+        }
+    }
+
+    private void refresh()
+    {
+        ServicesKeySet keySet = null;
+        try {
+            keySet = this.source.get();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to fetch services keys", e);
+        }
+
+        Collection<ServicesKeyInfo> keys = keySet == null ? null : keySet.keys(ServicesKeyType.PROFILE_KEY);
+        if(keys == null || keys.isEmpty()) {
+            LOGGER.warn("Could not fetch the services keys, retrying in {} minutes", RETRY_MINUTES);
+            this.refreshExecutor.schedule(this::refresh, RETRY_MINUTES, TimeUnit.MINUTES);
+            return;
+        }
+
+        setKeys(keySet);
+        saveToDisk(keys);
+        this.refreshExecutor.schedule(this::refresh, TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void setKeys(ServicesKeySet keySet)
+    {
+        this.validator = SignatureValidator.from(keySet);
+        this.firstLoad.complete(null);
+    }
+
+    private void saveToDisk(Collection<ServicesKeyInfo> keys)
+    {
+        JsonArray keysJson = new JsonArray();
+        for(ServicesKeyInfo key : keys) {
+            if(!(key instanceof YggdrasilServicesKeyInfo yggdrasilKey)) {
+                LOGGER.debug("Can't cache services key of type {}", key.getClass());
+                return;
+            }
+            keysJson.add(Base64.getEncoder().encodeToString(yggdrasilKey.publicKey().getEncoded()));
+        }
+
+        JsonObject cache = new JsonObject();
+        cache.addProperty("fetched", System.currentTimeMillis());
+        cache.add("keys", keysJson);
+        try {
+            Utils.saveJson(cache, this.cacheFile);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to save services keys", e);
+        }
+    }
+}
@@ -13,6 +13,8 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Copied from https://github.com/cpw/serverpacklocator/blob/4496cf9ba45515b286bde1a3a79513e75b69754e/src/main/java/cpw/mods/forge/serverpacklocator/secure/SignatureValidator.java
@@ -32,14 +34,26 @@ public interface SignatureValidator {
     }
 
     static SignatureValidator from(final PublicKey publicKey, final String algorithmName) {
-        return (payLoad, inputSignature) -> {
+        // Signature objects are not thread safe, every thread gets its own initialized instance. verify resets it for the next use
+        final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> {
             try {
                 Signature signature = Signature.getInstance(algorithmName);
                 signature.initVerify(publicKey);
-                return verifySignature(payLoad, inputSignature, signature);
+                return signature;
+            }
+            catch (NoSuchAlgorithmException | InvalidKeyException e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        return (payLoad, inputSignature) -> {
+            try {
+                return verifySignature(payLoad, inputSignature, signatures.get());
             }
-            catch (NoSuchAlgorithmException | SignatureException | InvalidKeyException e)
+            catch (SignatureException e)
             {
+                // the signature may be in an undefined state now
+                signatures.remove();
                 throw new RuntimeException(e);
             }
         };
@@ -51,16 +65,30 @@ public interface SignatureValidator {
     		throw new IllegalStateException("Could not get keys for ServicesKeyType.PROFILE_KEY");
     	}
     	
+    	final List<ServicesKeyInfo> keys = List.copyOf(servicesKeyInfos);
+    	// Every thread gets its own initialized Signature objects, they are created lazily
+    	final ThreadLocal<Signature[]> signatures = ThreadLocal.withInitial(() -> new Signature[keys.size()]);
+    	// All player keys are usually signed by the same services key, so try the last matching key first
+    	final AtomicInteger lastMatch = new AtomicInteger(0);
     	return (payload, inputSignature) -> {
-    		return servicesKeyInfos.stream().anyMatch(servicesKeyInfo -> {
-    			Signature signature = servicesKeyInfo.signature();
+    		int first = lastMatch.get();
+    		for(int i = 0; i < keys.size(); i++) {
+    			int idx = (first + i) % keys.size();
+    			Signature[] threadSignatures = signatures.get();
+    			if(threadSignatures[idx] == null) {
+    				threadSignatures[idx] = keys.get(idx).signature();
+    			}
                 try {
-                    return verifySignature(payload, inputSignature, signature);
+                    if(verifySignature(payload, inputSignature, threadSignatures[idx])) {
+                    	lastMatch.set(idx);
+                    	return true;
+                    }
                 } catch (SignatureException signatureexception) {
+                    threadSignatures[idx] = null;
                     LOGGER.error("Failed to verify Services signature", signatureexception);
-                    return false;
                 }
-    		});
+    		}
+    		return false;
     	};
     }
 }
@@ -17,13 +17,23 @@ public interface Signer {
     byte[] sign(byte[] payload);
 
     static Signer from(PrivateKey privateKey, String algorithmName) {
-        return (payload) -> {
+        // Every thread gets its own initialized Signature, sign resets it for the next use
+        final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> {
             try {
                 Signature signature = Signature.getInstance(algorithmName);
                 signature.initSign(privateKey);
+                return signature;
+            } catch (Exception exception) {
+                throw new IllegalStateException("Failed to initialize signature", exception);
+            }
+        });
+        return (payload) -> {
+            try {
+                Signature signature = signatures.get();
                 signature.update(payload);
                 return signature.sign();
             } catch (Exception exception) {
+                signatures.remove();
                 throw new IllegalStateException("Failed to sign message", exception);
             }
         };
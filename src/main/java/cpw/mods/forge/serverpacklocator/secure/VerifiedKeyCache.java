@@ -0,0 +1,60 @@
+package cpw.mods.forge.serverpacklocator.secure;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import cpw.mods.forge.serverpacklocator.secure.ProfileKeyPairBasedSecurityManager.PublicKeyData;
+
+/**
+ * Remembers player public keys that were successfully verified against the Mojang services keys,
+ * so a reconnecting player does not need another RSA verification until the key expires.
+ * The cache is bounded, the least recently used keys are removed first.
+ */
+public final class VerifiedKeyCache
+{
+    private static final int MAX_ENTRIES = 1024;
+
+    private final Map<CacheKey, Instant> verifiedKeys = new LinkedHashMap<>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Instant> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return true, if the public key was verified for this player before and has not expired yet
+     */
+    public boolean isVerified(UUID playerUUID, PublicKeyData keyData) {
+        CacheKey key = CacheKey.of(playerUUID, keyData);
+        synchronized(this.verifiedKeys) {
+            Instant expiresAt = this.verifiedKeys.get(key);
+            if(expiresAt == null) {
+                return false;
+            }
+            if(expiresAt.isBefore(Instant.now())) {
+                this.verifiedKeys.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public void add(UUID playerUUID, PublicKeyData keyData) {
+        CacheKey key = CacheKey.of(playerUUID, keyData);
+        synchronized(this.verifiedKeys) {
+            this.verifiedKeys.put(key, keyData.expiresAt());
+        }
+    }
+
+    // ByteBuffer compares its content, so the encoded key can be used as part of the map key
+    private static record CacheKey(UUID playerUUID, ByteBuffer encodedKey, long expiresAt) {
+        private static CacheKey of(UUID playerUUID, PublicKeyData keyData) {
+            return new CacheKey(playerUUID, ByteBuffer.wrap(keyData.key().getEncoded()), keyData.expiresAt().toEpochMilli());
+        }
+    }
+}
@@ -2,34 +2,107 @@ package cpw.mods.forge.serverpacklocator.secure;
 
 import cpw.mods.forge.serverpacklocator.ModAccessor;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Copied from https://github.com/cpw/serverpacklocator/blob/4496cf9ba45515b286bde1a3a79513e75b69754e/src/main/java/cpw/mods/forge/serverpacklocator/secure/WhitelistVerificationHelper.java
- * 
+ *
+ * Changes:
+ * The whitelist is cached for a short time and fetched asynchronously from the utility mod, so a lagging server tick does not block every verification
  */
 public final class WhitelistVerificationHelper
 {
+    private static final Logger LOGGER = LogManager.getLogger();
     private static final WhitelistVerificationHelper INSTANCE = new WhitelistVerificationHelper();
 
+    // cached values older than this, or fetches running for this long, are fetched again
+    private static final long CACHE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // maximum time to wait for the server thread
+    private static final long LOOKUP_TIMEOUT_SECONDS = 10;
+    private static final int MAX_CACHED_PLAYERS = 1024;
+
     public static WhitelistVerificationHelper getInstance()
     {
         return INSTANCE;
     }
 
+    // guarded by this
+    private CachedValue whiteListEnabled;
+    // the least recently checked players are removed first, guarded by this
+    private final Map<UUID, CachedValue> whiteListed = new LinkedHashMap<>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, CachedValue> eldest) {
+            return size() > MAX_CACHED_PLAYERS;
+        }
+    };
+
     private WhitelistVerificationHelper()
     {
     }
+
+    /**
+     * Checks if the player is allowed to download the modpack. Only waits for the server thread, if the player was not checked recently,
+     * concurrent checks of the same player wait for the same lookup.
+     */
     public AllowedStatus isAllowed(final UUID sessionId) {
-    	if(ModAccessor.getIsWhiteListEnabled() == null || ModAccessor.getIsWhiteListed() == null) {
-    		return AllowedStatus.NOT_READY;
-    	}
-    	if(!ModAccessor.getIsWhiteListEnabled().get().join() || ModAccessor.getIsWhiteListed().apply(sessionId).join()) {
-    		return AllowedStatus.ALLOWED;
-    	}
-        return AllowedStatus.REJECTED;
-    }
-    
+        if(ModAccessor.getIsWhiteListEnabled() == null || ModAccessor.getIsWhiteListed() == null) {
+            return AllowedStatus.NOT_READY;
+        }
+        try {
+            return isAllowedAsync(sessionId).get(LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            LOGGER.warn("Failed to check whitelist status of player {}", sessionId, e);
+            return AllowedStatus.NOT_READY;
+        }
+    }
+
+    public CompletableFuture<AllowedStatus> isAllowedAsync(final UUID sessionId) {
+        if(ModAccessor.getIsWhiteListEnabled() == null || ModAccessor.getIsWhiteListed() == null) {
+            return CompletableFuture.completedFuture(AllowedStatus.NOT_READY);
+        }
+
+        return whiteListEnabled().thenCompose(isEnabled -> {
+            if(!isEnabled) {
+                return CompletableFuture.completedFuture(AllowedStatus.ALLOWED);
+            }
+            return whiteListed(sessionId).thenApply(isListed -> isListed ? AllowedStatus.ALLOWED : AllowedStatus.REJECTED);
+        });
+    }
+
+    private synchronized CompletableFuture<Boolean> whiteListEnabled() {
+        if(!isFresh(this.whiteListEnabled)) {
+            this.whiteListEnabled = new CachedValue(ModAccessor.getIsWhiteListEnabled().get(), System.currentTimeMillis());
+        }
+        return this.whiteListEnabled.value();
+    }
+
+    private synchronized CompletableFuture<Boolean> whiteListed(UUID sessionId) {
+        CachedValue listed = this.whiteListed.get(sessionId);
+        if(!isFresh(listed)) {
+            listed = new CachedValue(ModAccessor.getIsWhiteListed().apply(sessionId), System.currentTimeMillis());
+            this.whiteListed.put(sessionId, listed);
+        }
+        return listed.value();
+    }
+
+    // Failed lookups are not cached, a running lookup is shared until it took too long
+    private static boolean isFresh(CachedValue cached) {
+        return cached != null && !cached.value().isCompletedExceptionally() && System.currentTimeMillis() - cached.fetchedAt() < CACHE_MILLIS;
+    }
+
+    private static record CachedValue(CompletableFuture<Boolean> value, long fetchedAt) {}
+
     public static enum AllowedStatus  {
     	ALLOWED,
     	REJECTED,
@@ -0,0 +1,199 @@
+package cpw.mods.forge.serverpacklocator.secure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mojang.authlib.yggdrasil.ServicesKeySet;
+import com.mojang.authlib.yggdrasil.ServicesKeyType;
+import com.mojang.authlib.yggdrasil.YggdrasilServicesKeyInfo;
+
+import bricktricker.servercursemanager.Utils;
+
+class ServicesKeySetCacheTest
+{
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final byte[] PAYLOAD = "payload".getBytes(StandardCharsets.UTF_8);
+
+    private static KeyPair cachedKey;
+    private static KeyPair fetchedKey;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void generateKeys() throws GeneralSecurityException
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        cachedKey = generator.generateKeyPair();
+        fetchedKey = generator.generateKeyPair();
+    }
+
+    @Test
+    void refreshesExpiredCache() throws Exception
+    {
+        Path cacheFile = writeCache(System.currentTimeMillis() - TTL_MILLIS - 1000, cachedKey);
+        ManualScheduler scheduler = new ManualScheduler();
+        ServicesKeySetCache cache = new ServicesKeySetCache(cacheFile, () -> keySet(fetchedKey), scheduler);
+        SignatureValidator validator = cache.validator();
+
+        assertEquals(List.of(0L), scheduler.delays);
+        assertTrue(validator.validate(PAYLOAD, sign(cachedKey)));
+
+        scheduler.runNext();
+        assertFalse(validator.validate(PAYLOAD, sign(cachedKey)));
+        assertTrue(validator.validate(PAYLOAD, sign(fetchedKey)));
+        assertEquals(List.of(0L, TTL_MILLIS), scheduler.delays);
+
+        // The next start uses the fetched keys without a refresh
+        ManualScheduler restarted = new ManualScheduler();
+        ServicesKeySetCache reloaded = new ServicesKeySetCache(cacheFile, () -> null, restarted);
+        assertTrue(reloaded.validator().validate(PAYLOAD, sign(fetchedKey)));
+        assertTrue(restarted.delays.get(0) > TTL_MILLIS - TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Test
+    void keepsFreshCache() throws Exception
+    {
+        Path cacheFile = writeCache(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1), cachedKey);
+        AtomicInteger fetches = new AtomicInteger();
+        ManualScheduler scheduler = new ManualScheduler();
+        ServicesKeySetCache cache = new ServicesKeySetCache(cacheFile, () -> {
+            fetches.incrementAndGet();
+            return keySet(fetchedKey);
+        }, scheduler);
+
+        long delay = scheduler.delays.get(0);
+        assertTrue(delay > TimeUnit.HOURS.toMillis(22) && delay <= TimeUnit.HOURS.toMillis(23), "refresh delay " + delay);
+        assertTrue(cache.validator().validate(PAYLOAD, sign(cachedKey)));
+        assertEquals(0, fetches.get());
+    }
+
+    @Test
+    void retriesFailedFetches() throws Exception
+    {
+        List<Supplier<ServicesKeySet>> responses = List.of(
+                () -> null,
+                () -> type -> List.of(),
+                () -> {
+                    throw new IllegalStateException("services endpoint unavailable");
+                },
+                () -> keySet(fetchedKey));
+        AtomicInteger fetches = new AtomicInteger();
+        ManualScheduler scheduler = new ManualScheduler();
+        ServicesKeySetCache cache = new ServicesKeySetCache(dir.resolve("serviceskeys.json"),
+                () -> responses.get(fetches.getAndIncrement()).get(), scheduler);
+
+        for(int i = 0; i < responses.size(); i++) {
+            scheduler.runNext();
+        }
+        assertEquals(List.of(0L, RETRY_MILLIS, RETRY_MILLIS, RETRY_MILLIS, TTL_MILLIS), scheduler.delays);
+        assertTrue(cache.validator().validate(PAYLOAD, sign(fetchedKey)));
+        assertTrue(Files.isRegularFile(dir.resolve("serviceskeys.json")));
+    }
+
+    @Test
+    void usesCachedKeysIfTheFetchFails() throws Exception
+    {
+        Path cacheFile = writeCache(System.currentTimeMillis() - TTL_MILLIS - 1000, cachedKey);
+        String cached = Files.readString(cacheFile);
+        ManualScheduler scheduler = new ManualScheduler();
+        ServicesKeySetCache cache = new ServicesKeySetCache(cacheFile, () -> null, scheduler);
+        SignatureValidator validator = cache.validator();
+
+        scheduler.runNext();
+        assertEquals(List.of(0L, RETRY_MILLIS), scheduler.delays);
+        assertTrue(validator.validate(PAYLOAD, sign(cachedKey)));
+        assertFalse(validator.validate(PAYLOAD, sign(fetchedKey)));
+        assertEquals(cached, Files.readString(cacheFile));
+    }
+
+    @Test
+    void ignoresCorruptCache() throws Exception
+    {
+        Path cacheFile = dir.resolve("serviceskeys.json");
+        Files.writeString(cacheFile, "{\"fetched\": 1, \"keys\": [\"not base64\"]}");
+        ManualScheduler scheduler = new ManualScheduler();
+        ServicesKeySetCache cache = new ServicesKeySetCache(cacheFile, () -> keySet(fetchedKey), scheduler);
+
+        assertEquals(List.of(0L), scheduler.delays);
+        scheduler.runNext();
+        assertTrue(cache.validator().validate(PAYLOAD, sign(fetchedKey)));
+    }
+
+    private Path writeCache(long fetched, KeyPair key)
+    {
+        JsonArray keys = new JsonArray();
+        keys.add(Base64.getEncoder().encodeToString(key.getPublic().getEncoded()));
+        JsonObject cache = new JsonObject();
+        cache.addProperty("fetched", fetched);
+        cache.add("keys", keys);
+        Path cacheFile = dir.resolve("serviceskeys.json");
+        Utils.saveJson(cache, cacheFile);
+        return cacheFile;
+    }
+
+    private static ServicesKeySet keySet(KeyPair key)
+    {
+        YggdrasilServicesKeyInfo info = YggdrasilServicesKeyInfo.parse(ByteBuffer.wrap(key.getPublic().getEncoded()));
+        return type -> type == ServicesKeyType.PROFILE_KEY ? List.of(info) : List.of();
+    }
+
+    private static byte[] sign(KeyPair key) throws GeneralSecurityException
+    {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(key.getPrivate());
+        signature.update(PAYLOAD);
+        return signature.sign();
+    }
+
+    // Records the scheduled refreshes, they only run when the test calls runNext
+    private static class ManualScheduler extends ScheduledThreadPoolExecutor
+    {
+        final List<Long> delays = new ArrayList<>();
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        ManualScheduler()
+        {
+            super(0);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+        {
+            this.delays.add(unit.toMillis(delay));
+            this.tasks.add(command);
+            return null;
+        }
+
+        void runNext()
+        {
+            this.tasks.remove(0).run();
+        }
+    }
+}
@@ -16,6 +16,10 @@ import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -59,6 +63,44 @@ public class UtilityMod {
 
         private static void onClient(FMLClientSetupEvent event) {
             NeoForge.EVENT_BUS.addListener(UtilityMod.Wrapper::onShowGui);
+            startPackUpdateChecks();
+        }
+
+        // Checks the server for a new modpack while the game is running, so the next launch does not need to download it
+        private static void startPackUpdateChecks() {
+            int interval;
+            BooleanSupplier check;
+            try {
+                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                Class<?> clz = LambdaExceptionUtils.uncheck(() -> Class.forName("cpw.mods.forge.serverpacklocator.ModAccessor", true, classLoader));
+                Method getInterval = LambdaExceptionUtils.uncheck(() -> clz.getMethod("getPackUpdateInterval"));
+                Method checkForUpdate = LambdaExceptionUtils.uncheck(() -> clz.getMethod("checkForPackUpdate"));
+                interval = LambdaExceptionUtils.uncheck(() -> (Integer)getInterval.invoke(null));
+                check = () -> LambdaExceptionUtils.uncheck(() -> (Boolean)checkForUpdate.invoke(null));
+            } catch (Throwable error) {
+                LOGGER.error("Failed to setup the modpack update check", error);
+                return;
+            }
+            if (interval <= 0) {
+                return;
+            }
+
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ServerCurseManager-UpdateCheck");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    if (check.getAsBoolean()) {
+                        // the update is staged, nothing to do until the next launch
+                        executor.shutdown();
+                    }
+                } catch (Throwable error) {
+                    LOGGER.warn("Failed to check for a modpack update", error);
+                }
+            }, interval, interval, TimeUnit.MINUTES);
         }
     }
 
@@ -69,6 +111,7 @@ public class UtilityMod {
             Method setIsWhiteListed = LambdaExceptionUtils.uncheck(() -> clz.getMethod("setIsWhiteListed", Function.class));
             Method setIsWhiteListEnabled = LambdaExceptionUtils.uncheck(() -> clz.getMethod("setIsWhiteListEnabled", Supplier.class));
             Method setNameResolver = LambdaExceptionUtils.uncheck(() -> clz.getMethod("setNameResolver", Function.class));
+            Method setPlayerCount = LambdaExceptionUtils.uncheck(() -> clz.getMethod("setPlayerCount", Supplier.class));
             LambdaExceptionUtils.uncheck(() -> setIsWhiteListed.invoke(null, (Function<UUID, CompletableFuture<Boolean>>)(id) -> startedEvent.getServer().submit(() -> {
                 return startedEvent.getServer().getPlayerList().getWhiteList().isWhiteListed(new GameProfile(id, "")); //Name does not matter
             })));
@@ -78,6 +121,8 @@ public class UtilityMod {
                     return startedEvent.getServer().getProfileCache().get(id).map(GameProfile::getName);
                 });
             }));
+            // used to lower the bandwidth of the pack transfers while players are online
+            LambdaExceptionUtils.uncheck(() -> setPlayerCount.invoke(null, (Supplier<Integer>)() -> startedEvent.getServer().getPlayerCount()));
 
         } catch (Throwable error) {
             LOGGER.error("Failed to setup Blackboard!", error);
@@ -86,7 +131,9 @@ public class UtilityMod {
 
     @SuppressWarnings("unchecked")
     private static class Wrapper {
-        private static boolean brandingHacked = false;
+        private static List<String> originalBranding = null;
+        // the status can change while the game runs, e.g. when a modpack update was downloaded
+        private static String shownStatus = null;
         private static final Supplier<String> statusMessage;
         private static final Field brandingList;
 
@@ -94,17 +141,20 @@ public class UtilityMod {
         }
 
         static void onShowGui(ScreenEvent.Render.Pre event) {
-            if (!brandingHacked) {
-                if (event.getScreen() instanceof TitleScreen) {
-                    List<String> branding = (List<String>) LambdaExceptionUtils.uncheck(() -> (List)brandingList.get(null));
-                    if (branding != null) {
-                        Builder<String> brd = ImmutableList.builder();
-                        brd.addAll(branding);
-                        brd.add(statusMessage.get());
-                        LambdaExceptionUtils.uncheck(() -> brandingList.set(null, brd.build()));
-                        brandingHacked = true;
-                    }
-
+            if (event.getScreen() instanceof TitleScreen) {
+                String status = statusMessage.get();
+                if (status.equals(shownStatus)) {
+                    return;
+                }
+                if (originalBranding == null) {
+                    originalBranding = (List<String>) LambdaExceptionUtils.uncheck(() -> (List)brandingList.get(null));
+                }
+                if (originalBranding != null) {
+                    Builder<String> brd = ImmutableList.builder();
+                    brd.addAll(originalBranding);
+                    brd.add(status);
+                    LambdaExceptionUtils.uncheck(() -> brandingList.set(null, brd.build()));
+                    shownStatus = status;
                 }
             }
         }